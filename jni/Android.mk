@@ -3,8 +3,23 @@ LOCAL_PATH := $(call my-dir)
 include $(CLEAR_VARS)
 
 LOCAL_MODULE    := refract
-LOCAL_SRC_FILES := NativeRenderer.c renderer.c iterate.c palette.c
+LOCAL_SRC_FILES := NativeRenderer.c renderer.c iterate.c iterate_precise.c iterate_perturb.c bigfix.c palette.c pool.c
 LOCAL_CFLAGS    := -std=c99
 LOCAL_LDLIBS    := -lm -llog -ljnigraphics
+LOCAL_STATIC_LIBRARIES := cpufeatures
+
+# Only ARMv7 can be built with NEON, and then only used if the CPU supports it
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_SRC_FILES += iterate_simd.c.neon
+else
+LOCAL_SRC_FILES += iterate_simd.c
+endif
+
+# Double-double arithmetic needs SSE rather than x87 rounding
+ifeq ($(TARGET_ARCH_ABI),x86)
+LOCAL_CFLAGS += -msse2 -mfpmath=sse
+endif
 
 include $(BUILD_SHARED_LIBRARY)
+
+$(call import-module,android/cpufeatures)
@@ -1,3 +1,3 @@
-# The ARMv7 is significanly faster due to the use of the hardware FPU
-APP_ABI := armeabi armeabi-v7a
+# The ARMv7 is significanly faster due to the use of the hardware FPU and NEON
+APP_ABI := armeabi armeabi-v7a x86
 APP_PLATFORM := android-8
\ No newline at end of file
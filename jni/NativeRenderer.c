@@ -35,187 +35,301 @@
 // Set to 1 to enable debug log traces
 #define DEBUG 0
 
-#define NATIVERENDERER_CLASS	"com/ijuru/refract/renderer/jni/NativeRenderer"
-#define FUNCTION_CLASS			"com/ijuru/refract/renderer/Function"
-#define COMPLEX_CLASS			"com/ijuru/refract/renderer/Complex"
-#define MAPPING_CLASS			"com/ijuru/refract/renderer/Mapping"
+/**
+ * Block of memory shared with the Java object through a direct buffer, so that parameters and
+ * statistics are passed without any JNI calls. Offsets must match those in NativeRenderer.java
+ */
+typedef struct {
+	// Parameters, written by Java before iterating
+	double offset_re;		// 0
+	double offset_im;		// 8
+	double zoom;			// 16
+	double k_re;			// 24
+	double k_im;			// 32
+	int32_t degree;			// 40
+	int32_t julia;			// 44
+	int32_t iters;			// 48
+
+	// Statistics, written by native code after each call
+	int32_t max_iters;		// 52
+	int32_t active_count;	// 56
+	int32_t fill_errors;	// 60
+	int32_t width;			// 64
+	int32_t height;			// 68
+	int32_t threads;		// 72
+	int32_t strategy;		// 76
+	int32_t iters_limit;	// 80
+	int32_t generation;		// 84, incremented whenever the iterations buffer changes
+	int32_t colored;		// 88, pixels colored by the last render
+	int32_t changed_left;	// 92, bounds of the pixels whose colors the last render changed
+	int32_t changed_top;	// 96
+	int32_t changed_right;	// 100, exclusive
+	int32_t changed_bottom;	// 104, exclusive
+	int32_t pending_count;	// 108, pixels waiting to be iterated from scratch
+} block_t;
+
+#define BLOCK_SIZE	112
+
+// Fails to compile if the layout isn't what Java expects
+typedef char block_size_check[(sizeof (block_t) == BLOCK_SIZE) ? 1 : -1];
 
-// Cached Java entities
-jclass nativerenderer_class, function_class, complex_class, mapping_class;
-jfieldID nativerenderer_renderer_fid, complex_re_fid, complex_im_fid;
-jmethodID function_ordinal_mid, function_values_mid, complex_cid, mapping_ordinal_mid, mapping_values_mid;
+/**
+ * Renderer and the block shared with its Java object. A pointer to this is the handle passed to each native method
+ */
+typedef struct {
+	renderer_t renderer;
+	block_t* block;
+} native_t;
 
 /**
  * Called by JVM as library is being loaded
  */
-JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* jvm, void* reserved)
- {
-	// Get JNI environment
-	JNIEnv* env;
-	if ((*jvm)->GetEnv(jvm, (void**)&env, JNI_VERSION_1_4))
-		return JNI_ERR;
-
-	// Cache Java classes
-	jclass cls = (*env)->FindClass(env, NATIVERENDERER_CLASS);
-	nativerenderer_class = (*env)->NewGlobalRef(env, cls);
-	nativerenderer_renderer_fid = (*env)->GetFieldID(env, nativerenderer_class, "renderer", "J");
-
-	cls = (*env)->FindClass(env, FUNCTION_CLASS);
-	function_class = (*env)->NewGlobalRef(env, cls);
-	function_ordinal_mid = (*env)->GetMethodID(env, function_class, "ordinal", "()I");
-
-	cls = (*env)->FindClass(env, COMPLEX_CLASS);
-	complex_class = (*env)->NewGlobalRef(env, cls);
-	complex_re_fid = (*env)->GetFieldID(env, complex_class, "re", "D");
-	complex_im_fid = (*env)->GetFieldID(env, complex_class, "im", "D");
-
-	cls = (*env)->FindClass(env, MAPPING_CLASS);
-	mapping_class = (*env)->NewGlobalRef(env, cls);
-	mapping_ordinal_mid = (*env)->GetMethodID(env, mapping_class, "ordinal", "()I");
-
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* jvm, void* reserved) {
 	LOG_D("Loaded library (version %s)", REFRACT_LIB_VERSION);
 
 	return JNI_VERSION_1_4;
 }
 
 /**
- * Called by JVM as library is being unloaded
+ * Gets the native object from a handle
  */
-JNIEXPORT void JNICALL JNI_OnUnload(JavaVM* jvm, void* reserved) {
-	JNIEnv *env;
-	if ((*jvm)->GetEnv(jvm, (void**)&env, JNI_VERSION_1_4))
-		return;
-
-	(*env)->DeleteGlobalRef(env, nativerenderer_class);
-	(*env)->DeleteGlobalRef(env, function_class);
-	(*env)->DeleteGlobalRef(env, complex_class);
-	(*env)->DeleteGlobalRef(env, mapping_class);
-
-	LOG_D("Unloaded library");
+static inline native_t* get_native(jlong handle) {
+	return (native_t*)(intptr_t)handle;
 }
 
 /**
- * Gets the renderer field of a NativeRenderer object
+ * Copies the renderer's statistics into the shared block
  */
-static renderer_t* get_renderer(JNIEnv* env, jobject this) {
-	return (renderer_t*)(intptr_t)((*env)->GetLongField(env, this, nativerenderer_renderer_fid));
+static void update_block(native_t* native) {
+	renderer_t* renderer = &native->renderer;
+	block_t* block = native->block;
+
+	block->max_iters = (int32_t)renderer->cache_max_iters;
+	block->active_count = (int32_t)refract_renderer_active_count(renderer);
+	block->pending_count = (int32_t)refract_renderer_pending_count(renderer);
+	block->fill_errors = (int32_t)renderer->fill_errors;
+	block->width = (int32_t)renderer->width;
+	block->height = (int32_t)renderer->height;
+	block->threads = (int32_t)renderer->pool.size;
+	block->strategy = (int32_t)renderer->strategy;
+	block->iters_limit = (int32_t)renderer->iters_limit;
 }
 
 /**
- * Sets the renderer field of a NativeRenderer object
+ * Reads the function from the shared block
  */
-static void set_renderer(JNIEnv* env, jobject this, renderer_t* renderer) {
-	(*env)->SetLongField(env, this, nativerenderer_renderer_fid, (jlong)(intptr_t)renderer);
+static void get_function(const block_t* block, func_t* func) {
+	func->degree = (int)block->degree;
+	func->julia = block->julia != 0;
+	func->k.re = block->k_re;
+	func->k.im = block->k_im;
 }
 
 /**
- * Initializes the renderer
+ * Initializes a renderer which shares the given direct buffer, returning its handle or zero on failure
  */
-JNIEXPORT jboolean JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_allocate(JNIEnv* env, jobject this, jint width, jint height) {
-	// Allocate renderer object
-	renderer_t* renderer = (renderer_t*)malloc(sizeof (renderer_t));
-	if (!renderer)
-		return false;
+JNIEXPORT jlong JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_nativeAllocate(JNIEnv* env, jclass cls, jobject buffer, jint width, jint height) {
+	block_t* block = (block_t*)(*env)->GetDirectBufferAddress(env, buffer);
+	if (!block || (*env)->GetDirectBufferCapacity(env, buffer) < BLOCK_SIZE) {
+		LOG_E("Invalid shared block");
+		return 0;
+	}
 
-	// Initialize it
-	if (refract_renderer_init(renderer, width, height)) {
-		// Store pointer on Java object
-		set_renderer(env, this, renderer);
+	// Allocate native object
+	native_t* native = (native_t*)malloc(sizeof (native_t));
+	if (!native)
+		return 0;
 
-		LOG_D("Renderer #%d: allocated resources (%dx%d)", renderer->id, renderer->width, renderer->height);
-		return true;
-	}
-	else {
+	// Initialize its renderer
+	renderer_t* renderer = &native->renderer;
+	if (!refract_renderer_init(renderer, width, height)) {
 		LOG_E("Renderer #%d: unable to allocate resources", renderer->id);
-		return false;
+		free(native);
+		return 0;
 	}
+
+	native->block = block;
+	block->generation = 0;
+	update_block(native);
+
+	LOG_D("Renderer #%d: allocated resources (%dx%d)", renderer->id, renderer->width, renderer->height);
+	return (jlong)(intptr_t)native;
 }
 
 /**
  * Resizes the renderer
  */
-JNIEXPORT jboolean JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_resize(JNIEnv* env, jobject this, jint width, jint height) {
-	renderer_t* renderer = get_renderer(env, this);
+JNIEXPORT jboolean JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_nativeResize(JNIEnv* env, jclass cls, jlong handle, jint width, jint height) {
+	native_t* native = get_native(handle);
+	renderer_t* renderer = &native->renderer;
 
 	LOG_D("Renderer #%d: resizing (%dx%d) -> (%dx%d)", renderer->id, renderer->width, renderer->height, (int)width, (int)height);
 
-	return refract_renderer_resize(renderer, (int)width, (int)height);
+	bool result = refract_renderer_resize(renderer, (int)width, (int)height);
+
+	native->block->generation++;
+	update_block(native);
+	return (jboolean)result;
 }
 
 /**
- * Gets the width
+ * Sets the number of threads used for iterating
  */
-JNIEXPORT jint JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_getWidth(JNIEnv* env, jobject this) {
-	renderer_t* renderer = get_renderer(env, this);
+JNIEXPORT jboolean JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_nativeSetThreadCount(JNIEnv* env, jclass cls, jlong handle, jint threads) {
+	native_t* native = get_native(handle);
+	renderer_t* renderer = &native->renderer;
+
+	bool result = refract_renderer_set_threads(renderer, (int)threads);
 
-	return (jint)renderer->width;
+	LOG_D("Renderer #%d: using %d threads", renderer->id, renderer->pool.size);
+
+	update_block(native);
+	return (jboolean)result;
 }
 
 /**
- * Gets the height
+ * Sets the strategy for choosing which pixels of fresh renders are iterated
  */
-JNIEXPORT jint JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_getHeight(JNIEnv* env, jobject this) {
-	renderer_t* renderer = get_renderer(env, this);
+JNIEXPORT void JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_nativeSetStrategy(JNIEnv* env, jclass cls, jlong handle, jint strategy) {
+	native_t* native = get_native(handle);
+	renderer_t* renderer = &native->renderer;
+
+	refract_renderer_set_strategy(renderer, (strategy_t)strategy);
 
-	return (jint)renderer->height;
+	LOG_D("Renderer #%d: using strategy %d", renderer->id, renderer->strategy);
+
+	update_block(native);
 }
 
 /**
- * Sets the palette
+ * Sets the max number of iterations that a render can reach
  */
-JNIEXPORT void JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_setPalette(JNIEnv* env, jobject this, jobject palette, jint size, jfloat bias, jint set_color) {
-	renderer_t* renderer = get_renderer(env, this);
+JNIEXPORT void JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_nativeSetMaxIterations(JNIEnv* env, jclass cls, jlong handle, jint max_iters) {
+	native_t* native = get_native(handle);
+	renderer_t* renderer = &native->renderer;
 
-	// Free existing palette
-	refract_palette_free(&renderer->palette);
+	refract_renderer_set_iters_limit(renderer, (iterc_t)MAX(max_iters, 0));
 
-	// Get palette object fields
-	jclass palette_class = (*env)->GetObjectClass(env, palette);
-	jfieldID fid_colors = (*env)->GetFieldID(env, palette_class, "colors", "[I");
-	jfieldID fid_anchors = (*env)->GetFieldID(env, palette_class, "anchors", "[F");
-	jobject obj_colors = (*env)->GetObjectField(env, palette, fid_colors);
-	jobject obj_anchors = (*env)->GetObjectField(env, palette, fid_anchors);
+	LOG_D("Renderer #%d: using max iterations %u", renderer->id, renderer->iters_limit);
 
-	jintArray* colors = (jintArray*)&obj_colors;
-	jfloatArray* anchors = (jfloatArray*)&obj_anchors;
+	update_block(native);
+}
 
-	// Get array elements
-	jint* colorvals = (*env)->GetIntArrayElements(env, *colors, NULL);
-	jfloat* anchorvals = (*env)->GetFloatArrayElements(env, *anchors, NULL);
-	int points = (*env)->GetArrayLength(env, *colors);
+/**
+ * Cancels any iteration in progress, which is called from a thread other than the one iterating
+ */
+JNIEXPORT void JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_nativeCancel(JNIEnv* env, jclass cls, jlong handle) {
+	refract_renderer_cancel(&get_native(handle)->renderer);
+}
 
-	refract_palette_init(&renderer->palette, size, RGB_TO_ABGR((int)set_color));
-	refract_palette_gradient(&renderer->palette, (color_t*)colorvals, (float*)anchorvals, points, (float)bias);
+/**
+ * Sets the palette from the colors and anchors of its gradient
+ */
+JNIEXPORT void JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_nativeSetPalette(JNIEnv* env, jclass cls, jlong handle, jintArray colors, jfloatArray anchors, jint size, jfloat bias, jint set_color) {
+	renderer_t* renderer = &get_native(handle)->renderer;
 
-	(*env)->ReleaseIntArrayElements(env, *colors, colorvals, 0);
-	(*env)->ReleaseFloatArrayElements(env, *anchors, anchorvals, 0);
+	// Copy the gradient out rather than pinning the Java arrays
+	int points = (int)(*env)->GetArrayLength(env, colors);
+	color_t* colorvals = (color_t*)malloc(points * sizeof (color_t));
+	float* anchorvals = (float*)malloc(points * sizeof (float));
 
-	LOG_D("Renderer #%d: updated palette", renderer->id);
+	if (colorvals && anchorvals) {
+		(*env)->GetIntArrayRegion(env, colors, 0, points, (jint*)colorvals);
+		(*env)->GetFloatArrayRegion(env, anchors, 0, points, (jfloat*)anchorvals);
+
+		// Replace existing palette
+		refract_palette_free(&renderer->palette);
+		refract_palette_init(&renderer->palette, size, RGB_TO_ABGR((int)set_color));
+		refract_palette_gradient(&renderer->palette, colorvals, anchorvals, points, (float)bias);
+		refract_renderer_invalidate(renderer);
+
+		LOG_D("Renderer #%d: updated palette", renderer->id);
+	}
+	else
+		LOG_E("Renderer #%d: unable to allocate palette gradient", renderer->id);
+
+	SAFE_FREE(colorvals);
+	SAFE_FREE(anchorvals);
+}
+
+/**
+ * Iterates the renderer, reporting any pixels which a checked subdivision has found to be wrong
+ */
+static jint iterate_renderer(native_t* native, params_t* params) {
+	renderer_t* renderer = &native->renderer;
+	int fill_errors = renderer->fill_errors;
+
+	iterc_t result = refract_renderer_iterate(renderer, params, (iterc_t)MAX(native->block->iters, 0));
+
+	if (renderer->fill_errors > fill_errors)
+		LOG_I("Renderer #%d: %d filled pixels differ from iterating them", renderer->id, renderer->fill_errors);
+
+	native->block->generation++;
+	update_block(native);
+	return (jint)result;
 }
 
 /**
- * Iterates the renderer by the specified number of iterations
+ * Iterates the renderer with the parameters in the shared block
  */
-JNIEXPORT jint JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_iterate(JNIEnv* env, jobject this, jobject function, jobject offset, jdouble zoom, jint iters) {
-	renderer_t* renderer = get_renderer(env, this);
+JNIEXPORT jint JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_nativeIterate(JNIEnv* env, jclass cls, jlong handle) {
+	native_t* native = get_native(handle);
+	const block_t* block = native->block;
 
-	// Gather parameters from Java objects
 	params_t params;
-	params.func = (func_t)(*env)->CallIntMethod(env, function, function_ordinal_mid);
-	params.offset.re = (float_t)((*env)->GetDoubleField(env, offset, complex_re_fid));
-	params.offset.im = (float_t)((*env)->GetDoubleField(env, offset, complex_im_fid));
-	params.zoom = (float_t)zoom;
+	get_function(block, &params.func);
+	params.offset.re = block->offset_re;
+	params.offset.im = block->offset_im;
+	params.zoom = block->zoom;
+	params.exact = false;
+	params.offset_lo.re = params.offset_lo.im = 0;
+
+	return iterate_renderer(native, &params);
+}
 
-	return (jint)refract_renderer_iterate(renderer, &params, (iterc_t)iters);
+/**
+ * Iterates the renderer with the parameters in the shared block, except for the offset which is given exactly as decimal strings
+ */
+JNIEXPORT jint JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_nativeIterateExact(JNIEnv* env, jclass cls, jlong handle, jstring offset_re, jstring offset_im) {
+	native_t* native = get_native(handle);
+	const block_t* block = native->block;
+
+	params_t params;
+	get_function(block, &params.func);
+	params.zoom = block->zoom;
+
+	const char* re = (*env)->GetStringUTFChars(env, offset_re, NULL);
+	const char* im = (*env)->GetStringUTFChars(env, offset_im, NULL);
+	bool parsed = refract_params_set_exact(&params, re, im);
+	(*env)->ReleaseStringUTFChars(env, offset_re, re);
+	(*env)->ReleaseStringUTFChars(env, offset_im, im);
+
+	if (!parsed) {
+		LOG_E("Renderer #%d: unable to parse offset", native->renderer.id);
+		return (jint)native->renderer.cache_max_iters;
+	}
+
+	return iterate_renderer(native, &params);
 }
 
 /**
- * Renders the iterations buffer to a pixel buffer
+ * Gets a direct buffer which wraps the iterations buffer, and stays valid until the renderer is resized or freed
  */
-JNIEXPORT jboolean JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_render(JNIEnv* env, jobject this, jobject bitmap, jobject mapping) {
-	renderer_t* renderer = get_renderer(env, this);
+JNIEXPORT jobject JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_nativeGetIterations(JNIEnv* env, jclass cls, jlong handle) {
+	renderer_t* renderer = &get_native(handle)->renderer;
 
-	mapping_t pal_mapping = (mapping_t)(*env)->CallIntMethod(env, mapping, mapping_ordinal_mid);
+	if (!renderer->iter_buffer)
+		return NULL;
+
+	return (*env)->NewDirectByteBuffer(env, renderer->iter_buffer, (jlong)(sizeof (iterc_t) * renderer->width * renderer->height));
+}
+
+/**
+ * Renders the iterations buffer to a bitmap
+ */
+JNIEXPORT jboolean JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_nativeRender(JNIEnv* env, jclass cls, jlong handle, jobject bitmap, jint mapping) {
+	native_t* native = get_native(handle);
+	renderer_t* renderer = &native->renderer;
 
 	AndroidBitmapInfo info;
 	AndroidBitmap_getInfo(env, bitmap, &info);
@@ -228,24 +342,34 @@ JNIEXPORT jboolean JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_re
 		return (jboolean)false;
 	}
 
-	bool result = refract_renderer_render(renderer, pixels, info.stride, pal_mapping);
+	bool result = refract_renderer_render(renderer, pixels, info.stride, (mapping_t)mapping);
 
 	AndroidBitmap_unlockPixels(env, bitmap);
+
+	if (result) {
+		block_t* block = native->block;
+		const rect_t* bounds = &renderer->color_bounds;
+		bool changed = bounds->x0 <= bounds->x1;
+
+		block->colored = (int32_t)renderer->colored_count;
+		block->changed_left = changed ? bounds->x0 : 0;
+		block->changed_top = changed ? bounds->y0 : 0;
+		block->changed_right = changed ? bounds->x1 + 1 : 0;
+		block->changed_bottom = changed ? bounds->y1 + 1 : 0;
+	}
 	return (jboolean)result;
 }
 
 /**
- * Frees the renderer for the given renderer
+ * Frees the renderer
  */
-JNIEXPORT void JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_free(JNIEnv* env, jobject this) {
-	renderer_t* renderer = get_renderer(env, this);
-
-	refract_renderer_free(renderer);
+JNIEXPORT void JNICALL Java_com_ijuru_refract_renderer_jni_NativeRenderer_nativeFree(JNIEnv* env, jclass cls, jlong handle) {
+	native_t* native = get_native(handle);
 
-	LOG_D("Renderer #%d: freed resources", renderer->id);
+	refract_renderer_free(&native->renderer);
 
-	// Free renderer object itself
-	SAFE_FREE(renderer);
+	LOG_D("Renderer #%d: freed resources", native->renderer.id);
 
-	set_renderer(env, this, NULL);
+	// Free native object itself
+	SAFE_FREE(native);
 }
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ *
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include "inc/refract.h"
+
+/**
+ * Checks whether a fixed point number is negative
+ */
+static inline bool refract_bigfix_negative(const bigfix_t* a) {
+	return (a->limbs[0] & 0x80000000) != 0;
+}
+
+/**
+ * Negates a fixed point number, i.e. inverts and adds one to the last limb
+ */
+static void refract_bigfix_neg(bigfix_t* r, const bigfix_t* a, int n) {
+	uint64_t carry = 1;
+	for (int i = n - 1; i >= 0; --i) {
+		uint64_t sum = (uint64_t)(uint32_t)~a->limbs[i] + carry;
+		r->limbs[i] = (uint32_t)sum;
+		carry = sum >> 32;
+	}
+}
+
+/**
+ * Parses a plain decimal string, e.g. "-0.75", into fixed point
+ */
+bool refract_bigfix_parse(bigfix_t* r, const char* str, int n) {
+	bool negative = (*str == '-');
+	if (*str == '-' || *str == '+')
+		++str;
+
+	// Integer part has to fit in the first limb
+	uint64_t whole = 0;
+	const char* p = str;
+	for (; *p >= '0' && *p <= '9'; ++p) {
+		whole = whole * 10 + (*p - '0');
+		if (whole > 0x7FFFFFFF)
+			return false;
+	}
+
+	if (p == str && *p != '.')
+		return false;
+
+	memset(r->limbs, 0, n * sizeof (uint32_t));
+
+	if (*p == '.') {
+		const char* frac_start = ++p;
+		while (*p >= '0' && *p <= '9')
+			++p;
+
+		// Work back from the least significant digit, i.e. r = (digit + r) / 10
+		for (const char* d = p - 1; d >= frac_start; --d) {
+			r->limbs[0] = *d - '0';
+
+			uint64_t rem = 0;
+			for (int i = 0; i < n; ++i) {
+				uint64_t cur = (rem << 32) | r->limbs[i];
+				r->limbs[i] = (uint32_t)(cur / 10);
+				rem = cur % 10;
+			}
+		}
+	}
+
+	if (*p != '\0')
+		return false;
+
+	r->limbs[0] = (uint32_t)whole;
+
+	if (negative)
+		refract_bigfix_neg(r, r, n);
+
+	return true;
+}
+
+/**
+ * Converts a double to fixed point. This is exact as long as the double has no bits below the last limb.
+ */
+void refract_bigfix_from_double(bigfix_t* r, double x, int n) {
+	double mag = fabs(x);
+	double whole = floor(mag);
+	double frac = mag - whole;
+
+	r->limbs[0] = (uint32_t)whole;
+	for (int i = 1; i < n; ++i) {
+		frac *= 4294967296.0;
+		double limb = floor(frac);
+		r->limbs[i] = (uint32_t)limb;
+		frac -= limb;
+	}
+
+	if (x < 0)
+		refract_bigfix_neg(r, r, n);
+}
+
+/**
+ * Converts a fixed point number to the nearest double
+ */
+double refract_bigfix_to_double(const bigfix_t* a, int n) {
+	bigfix_t mag;
+	bool negative = refract_bigfix_negative(a);
+	if (negative) {
+		refract_bigfix_neg(&mag, a, n);
+		a = &mag;
+	}
+
+	// Only the first few limbs can affect a double
+	double x = 0, scale = 1;
+	for (int i = 0; i < MIN(n, 4); ++i) {
+		x += a->limbs[i] * scale;
+		scale /= 4294967296.0;
+	}
+	return negative ? -x : x;
+}
+
+void refract_bigfix_add(bigfix_t* r, const bigfix_t* a, const bigfix_t* b, int n) {
+	uint64_t carry = 0;
+	for (int i = n - 1; i >= 0; --i) {
+		uint64_t sum = (uint64_t)a->limbs[i] + b->limbs[i] + carry;
+		r->limbs[i] = (uint32_t)sum;
+		carry = sum >> 32;
+	}
+}
+
+void refract_bigfix_sub(bigfix_t* r, const bigfix_t* a, const bigfix_t* b, int n) {
+	int64_t borrow = 0;
+	for (int i = n - 1; i >= 0; --i) {
+		int64_t diff = (int64_t)a->limbs[i] - b->limbs[i] - borrow;
+		r->limbs[i] = (uint32_t)diff;
+		borrow = (diff < 0) ? 1 : 0;
+	}
+}
+
+/**
+ * Multiplies two fixed point numbers, truncating the bits beyond the last limb
+ */
+void refract_bigfix_mul(bigfix_t* r, const bigfix_t* a, const bigfix_t* b, int n) {
+	bigfix_t a_mag, b_mag;
+	bool negative = refract_bigfix_negative(a) != refract_bigfix_negative(b);
+
+	// Multiply magnitudes and fix up the sign afterwards
+	if (refract_bigfix_negative(a)) {
+		refract_bigfix_neg(&a_mag, a, n);
+		a = &a_mag;
+	}
+	if (refract_bigfix_negative(b)) {
+		refract_bigfix_neg(&b_mag, b, n);
+		b = &b_mag;
+	}
+
+	// Column k of the product is the sum of limbs i and j where i + j = k. Columns beyond n - 1
+	// are only needed for their carries, and only the first of those carries much weight.
+	uint32_t product[BIGFIX_LIMBS_MAX + 1];
+	uint64_t carry = 0;
+
+	for (int k = n; k >= 0; --k) {
+		uint64_t lo = carry & 0xFFFFFFFF;
+		uint64_t hi = carry >> 32;
+
+		for (int i = MAX(0, k - (n - 1)); i <= MIN(k, n - 1); ++i) {
+			uint64_t p = (uint64_t)a->limbs[i] * b->limbs[k - i];
+			lo += p & 0xFFFFFFFF;
+			hi += p >> 32;
+		}
+
+		hi += lo >> 32;
+		product[k] = (uint32_t)lo;
+		carry = hi;
+	}
+
+	memcpy(r->limbs, product, n * sizeof (uint32_t));
+
+	if (negative)
+		refract_bigfix_neg(r, r, n);
+}
+
+/**
+ * Multiplies a fixed point number by a small positive integer
+ */
+void refract_bigfix_mul_int(bigfix_t* r, const bigfix_t* a, uint32_t k, int n) {
+	uint64_t carry = 0;
+	for (int i = n - 1; i >= 0; --i) {
+		uint64_t p = (uint64_t)a->limbs[i] * k + carry;
+		r->limbs[i] = (uint32_t)p;
+		carry = p >> 32;
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ *
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Max number of 32-bit limbs in a fixed point number, i.e. 1 integer limb and 33 fraction limbs
+ * which is enough for any zoom a double can hold
+ */
+#define BIGFIX_LIMBS_MAX 34
+
+/**
+ * Signed fixed point number in two's complement. Limb 0 is the integer part and the following
+ * limbs are successively smaller fractions. Operations take the number of limbs in use.
+ */
+typedef struct {
+	uint32_t limbs[BIGFIX_LIMBS_MAX];
+
+} bigfix_t;
+
+/**
+ * Fixed point functions
+ */
+bool refract_bigfix_parse(bigfix_t* r, const char* str, int n);
+void refract_bigfix_from_double(bigfix_t* r, double x, int n);
+double refract_bigfix_to_double(const bigfix_t* a, int n);
+void refract_bigfix_add(bigfix_t* r, const bigfix_t* a, const bigfix_t* b, int n);
+void refract_bigfix_sub(bigfix_t* r, const bigfix_t* a, const bigfix_t* b, int n);
+void refract_bigfix_mul(bigfix_t* r, const bigfix_t* a, const bigfix_t* b, int n);
+void refract_bigfix_mul_int(bigfix_t* r, const bigfix_t* a, uint32_t k, int n);
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ *
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef DDOUBLE_H_
+#define DDOUBLE_H_
+
+/**
+ * Double-double arithmetic, i.e. an unevaluated sum of two doubles giving about 106 bits of mantissa.
+ * These rely on strict IEEE double rounding so must not be compiled with -ffast-math or x87 maths.
+ */
+typedef struct {
+	double hi;
+	double lo;
+
+} ddouble_t;
+
+/**
+ * Splitting constant for Dekker multiplication, i.e. 2^27 + 1
+ */
+#define DD_SPLITTER 134217729.0
+
+static inline ddouble_t dd_make(double hi, double lo) {
+	ddouble_t r = { hi, lo };
+	return r;
+}
+
+/**
+ * Sum of two doubles where |a| >= |b|, with the exact error
+ */
+static inline ddouble_t dd_quick_two_sum(double a, double b) {
+	double s = a + b;
+	return dd_make(s, b - (s - a));
+}
+
+/**
+ * Sum of two doubles with the exact error
+ */
+static inline ddouble_t dd_two_sum(double a, double b) {
+	double s = a + b;
+	double bb = s - a;
+	return dd_make(s, (a - (s - bb)) + (b - bb));
+}
+
+/**
+ * Product of two doubles with the exact error
+ */
+static inline ddouble_t dd_two_prod(double a, double b) {
+	double p = a * b;
+	double t = DD_SPLITTER * a;
+	double a_hi = t - (t - a), a_lo = a - a_hi;
+	t = DD_SPLITTER * b;
+	double b_hi = t - (t - b), b_lo = b - b_hi;
+	return dd_make(p, ((a_hi * b_hi - p) + a_hi * b_lo + a_lo * b_hi) + a_lo * b_lo);
+}
+
+static inline ddouble_t dd_add(ddouble_t a, ddouble_t b) {
+	ddouble_t s = dd_two_sum(a.hi, b.hi);
+	ddouble_t t = dd_two_sum(a.lo, b.lo);
+	s = dd_quick_two_sum(s.hi, s.lo + t.hi);
+	return dd_quick_two_sum(s.hi, s.lo + t.lo);
+}
+
+static inline ddouble_t dd_neg(ddouble_t a) {
+	return dd_make(-a.hi, -a.lo);
+}
+
+static inline ddouble_t dd_sub(ddouble_t a, ddouble_t b) {
+	return dd_add(a, dd_neg(b));
+}
+
+static inline ddouble_t dd_mul(ddouble_t a, ddouble_t b) {
+	ddouble_t p = dd_two_prod(a.hi, b.hi);
+	return dd_quick_two_sum(p.hi, p.lo + (a.hi * b.lo + a.lo * b.hi));
+}
+
+static inline ddouble_t dd_mul_d(ddouble_t a, double b) {
+	ddouble_t p = dd_two_prod(a.hi, b);
+	return dd_quick_two_sum(p.hi, p.lo + a.lo * b);
+}
+
+static inline ddouble_t dd_sqr(ddouble_t a) {
+	ddouble_t p = dd_two_prod(a.hi, a.hi);
+	return dd_quick_two_sum(p.hi, p.lo + 2 * a.hi * a.lo);
+}
+
+/**
+ * Multiplies by a power of two, which is exact
+ */
+static inline ddouble_t dd_scale(ddouble_t a, double b) {
+	return dd_make(a.hi * b, a.lo * b);
+}
+
+/**
+ * Reciprocal of a double, refined by one Newton step
+ */
+static inline ddouble_t dd_recip(double a) {
+	double q = 1.0 / a;
+	ddouble_t r = dd_two_prod(q, a);
+	double e = ((1.0 - r.hi) - r.lo) / a;
+	return dd_quick_two_sum(q, e);
+}
+
+#endif
@@ -18,10 +18,14 @@
  */
 
 #include <stdlib.h>
+#include <stdint.h>
+#include <string.h>
 #include <stdbool.h>
 #include <math.h>
+#include <pthread.h>
 
 #include "color.h"
+#include "bigfix.h"
 
 /**
  * General purpose macros
@@ -29,16 +33,44 @@
 #define MAX(a, b) ((a) > (b) ? a : b)
 #define MIN(a, b) ((a) < (b) ? a : b)
 #define SAFE_FREE(p) if (p) { free(p); p = NULL; }
+#define SAFE_ALIGNED_FREE(p) if (p) { refract_aligned_free(p); p = NULL; }
+
+/**
+ * Alignment of screen buffers so that they can be loaded directly into SIMD registers
+ */
+#define BUFFER_ALIGN 16
 
 /**
  * Counts of iterations
  */
-typedef uint16_t iterc_t;
+typedef uint32_t iterc_t;
+
+/**
+ * Bits and max value of iteration counts, leaving the top bits free for flags
+ */
+#define ITERC_BITS 30
+#define ITERC_MAX ((1u << ITERC_BITS) - 1)
+
+/**
+ * Default limit on the iterations of a render, which each renderer can raise as far as ITERC_MAX
+ */
+#define ITERS_LIMIT_DEFAULT 0xFFF // 4095
+
+/**
+ * Iteration count of pixels known to be in the set, which never need iterating again
+ */
+#define ITERC_SET (ITERC_MAX + 1)
+
+/**
+ * Distance in pixels within which an orbit is considered to have returned to an earlier point
+ */
+#define PERIOD_TOLERANCE 1e-4
 
 /**
- * Max count of iterations
+ * Whether an orbit's check point should be moved to its current point, i.e. whenever the iteration
+ * count is a power of two. Checking against points saved like this finds cycles of any period.
  */
-#define ITERC_MAX 0xFFF // 4095
+#define PERIOD_CHECKPOINT(iters) (((iters) & ((iters) - 1)) == 0)
 
 /**
  * Real and imaginary floating point values
@@ -55,24 +87,117 @@ typedef struct {
 } complex_t;
 
 /**
- * Enumeration of set functions
+ * Complex values in double precision
+ */
+typedef struct {
+	double re;
+	double im;
+
+} dcomplex_t;
+
+/**
+ * Precision of the arithmetic used to iterate a render
  */
 typedef enum {
-	MANDELBROT, 	// z^2 + c
-	MANDELBROT_3, 	// z^3 + c
-	MANDELBROT_4 	// z^4 + c
+	PRECISION_FLOAT,
+	PRECISION_DOUBLE,
+	PRECISION_DOUBLE_DOUBLE,
+	PRECISION_PERTURBATION
+} precision_t;
+
+#define PRECISION_COUNT 4
+
+/**
+ * Range of degrees of z supported by the kernels
+ */
+#define DEGREE_MIN 2
+#define DEGREE_MAX 8
+
+/**
+ * Set function, i.e. z^d + c for the Multibrot set of degree d, or z^d + k for the Julia set of
+ * constant k where z starts at the pixel's position instead
+ */
+typedef struct {
+	int degree;
+	bool julia;
+	dcomplex_t k;
+
 } func_t;
 
 /**
- * Parameters of a fractal render
+ * Number of kernels in each table, and the index of a function's kernel. Each kernel is compiled
+ * for one function so that it never has to branch on which function it's iterating.
+ */
+#define FUNC_COUNT (2 * (DEGREE_MAX - DEGREE_MIN + 1))
+#define FUNC_INDEX(f) (2 * ((f).degree - DEGREE_MIN) + ((f).julia ? 1 : 0))
+
+/**
+ * Defines a table of kernels indexed by function, from a template which takes the function's degree
+ * and whether it's a Julia set as constant arguments
+ */
+#define KERNEL_INSTANCE(template, d, j) \
+	static void template##_##d##_##j(renderer_t* renderer, const params_t* params, iterc_t max_iters, iterc_t start_iters, const int* pixels, int count, int band, int bands) { \
+		template(renderer, params, max_iters, start_iters, pixels, count, band, bands, d, j); \
+	}
+#define KERNEL_INSTANCES(template, d) KERNEL_INSTANCE(template, d, false) KERNEL_INSTANCE(template, d, true)
+#define KERNEL_TABLE(name, template) \
+	KERNEL_INSTANCES(template, 2) KERNEL_INSTANCES(template, 3) KERNEL_INSTANCES(template, 4) KERNEL_INSTANCES(template, 5) \
+	KERNEL_INSTANCES(template, 6) KERNEL_INSTANCES(template, 7) KERNEL_INSTANCES(template, 8) \
+	const kernel_t name[FUNC_COUNT] = { \
+		template##_2_false, template##_2_true, template##_3_false, template##_3_true, template##_4_false, template##_4_true, \
+		template##_5_false, template##_5_true, template##_6_false, template##_6_true, template##_7_false, template##_7_true, \
+		template##_8_false, template##_8_true \
+	};
+
+/**
+ * Checks whether two functions are the same
+ */
+static inline bool refract_func_equal(const func_t* f1, const func_t* f2) {
+	if (f1->degree != f2->degree || f1->julia != f2->julia)
+		return false;
+
+	return !f1->julia || (f1->k.re == f2->k.re && f1->k.im == f2->k.im);
+}
+
+/**
+ * Parameters of a fractal render. The offset is always given as the nearest doubles, and for deep
+ * zooms can also be given exactly, in which case offset_lo holds the remainders as doubles.
  */
 typedef struct {
 	func_t func;
-	complex_t offset;
-	float_t zoom;
+	dcomplex_t offset;
+	double zoom;
+
+	bool exact;
+	dcomplex_t offset_lo;
+	bigfix_t exact_re;
+	bigfix_t exact_im;
 
 } params_t;
 
+/**
+ * Checks whether c is known to be in the set without iterating, i.e. it lies in the main cardioid
+ * or period-2 bulb of the Mandelbrot set. For higher powers there's no such closed form so instead
+ * check the largest disc about the origin inside the main component, |c| <= (d - 1) / d^(d / (d - 1)).
+ * Julia sets have no such region that holds for every k.
+ */
+static inline bool refract_interior_check(int degree, bool julia, double cr, double ci) {
+	// Squares of the disc radii, rounded down
+	static const double radii_2[] = { 0, 0, 0, 0.1481481, 0.2232282, 0.2862166, 0.3391383, 0.3840670, 0.4226592 };
+
+	if (julia)
+		return false;
+
+	if (degree == 2) {
+		double ci2 = ci * ci;
+		double xr = cr - 0.25;
+		double q = xr * xr + ci2;
+		double xb = cr + 1;
+		return (q * (q + xr) <= 0.25 * ci2) || (xb * xb + ci2 <= 0.0625);
+	}
+	return cr * cr + ci * ci <= radii_2[degree];
+}
+
 /**
  * Palette
  */
@@ -96,9 +221,114 @@ typedef enum {
 } mapping_t;
 
 /**
- * Rendering context
+ * Strategies for choosing which pixels of a fresh render are iterated
+ */
+typedef enum {
+	STRATEGY_PIXELS,			// every pixel, coarsest samples first
+	STRATEGY_SUBDIVIDE,			// only the borders of rectangles which turn out to be uniform
+	STRATEGY_SUBDIVIDE_CHECKED	// as above, but iterating inside filled rectangles to count pixels which differ
+
+} strategy_t;
+
+/**
+ * Rectangle of pixels given by its inclusive border coordinates
+ */
+typedef struct {
+	int x0, y0;
+	int x1, y1;
+
+} rect_t;
+
+/**
+ * Reference orbit for perturbation. The orbit is kept in fixed point so it can be extended as more
+ * iterations are requested, and each value is also stored as a double for the pixel kernels.
+ */
+typedef struct {
+	double* re;
+	double* im;
+	int length;
+	int capacity;
+	bool escaped;
+
+	int limbs;
+	bigfix_t zr;
+	bigfix_t zi;
+	bigfix_t cr;
+	bigfix_t ci;
+
+} orbit_t;
+
+/**
+ * Max number of worker threads
+ */
+#define THREADS_MAX 16
+
+/**
+ * Job function which is run on each band of a frame
+ */
+typedef void (*job_t)(void* arg, int band, int bands);
+
+/**
+ * Pool of worker threads
  */
 typedef struct {
+	int size;
+	struct worker* workers;
+
+	pthread_mutex_t mutex;
+	pthread_cond_t job_cond;
+	pthread_cond_t done_cond;
+
+	job_t job;
+	void* job_arg;
+	int job_id;
+	int pending;
+	bool stopping;
+
+} pool_t;
+
+/**
+ * Rendering context (forward declaration for kernel functions)
+ */
+typedef struct renderer renderer_t;
+
+/**
+ * Iteration kernel function, which iterates the band's share of the given list of pixel indexes. Pixels
+ * carry on from the z cache if they've already reached start_iters, or start from scratch if that's zero.
+ */
+typedef void (*kernel_t)(renderer_t* renderer, const params_t* params, iterc_t max_iters, iterc_t start_iters, const int* pixels, int count, int band, int bands);
+
+/**
+ * Number of consecutive entries of the active pixel list which a band takes at a time
+ */
+#define ACTIVE_CHUNK 64
+
+/**
+ * Max number of batches which pending pixels are split into, i.e. one per frame
+ */
+#define PENDING_BATCHES_MAX 8
+
+/**
+ * Max number of slices which a frame's iterations are split into so it can be cancelled between
+ * them, and the min number of iterations in each slice
+ */
+#define ITERATE_SLICES 8
+#define ITERATE_SLICE_MIN 16
+
+/**
+ * Number of values in each plane of the z cache, rounded up so each plane stays aligned
+ */
+#define Z_PLANE_SIZE(r) ((((r)->width * (r)->height) + 3) & ~3)
+
+/**
+ * Dirty pixel count meaning that every pixel needs coloring again
+ */
+#define DIRTY_ALL -1
+
+/**
+ * Rendering context
+ */
+struct renderer {
 	int id;
 	int width;
 	int height;
@@ -106,14 +336,57 @@ typedef struct {
 	palette_t palette;
 	int* palette_indexes;
 
+	color_t* color_buffer;
+	int* color_indexes;
+	int color_buckets;
+	iterc_t color_min_iters;
+	iterc_t color_max_iters;
+	mapping_t color_mapping;
+	int* dirty_pixels;
+	int dirty_count;
+	int colored_count;
+	rect_t color_bounds;
+	int full_copies;
+
 	iterc_t* iter_buffer;
 	uint32_t* iter_histogram;
+	uint32_t* band_histograms;
+	bool histogram_valid;
+	iterc_t histogram_min_iters;
+
+	int* active_pixels;
+	int active_count;
+	int* pending_pixels;
+	int pending_first;
+	int pending_count;
+	int pending_ends[PENDING_BATCHES_MAX];
+	int pending_batch;
+	int pending_block;
+	iterc_t* pending_estimates;
+	iterc_t pending_iters;
+	int pending_unescaped;
+
+	strategy_t strategy;
+	rect_t* rects;
+	int rect_count;
+	int fill_errors;
+
+	int mirror_x;
+	int mirror_y;
+
+	iterc_t iters_limit;
+	int cancel_generation;
 
 	params_t cache_params;
 	iterc_t cache_max_iters;
-	complex_t* z_cache;
+	precision_t cache_precision;
+	void* z_cache;
+	size_t z_cache_size;
 
-} renderer_t;
+	const kernel_t* kernels[PRECISION_COUNT];
+	orbit_t orbit;
+	pool_t pool;
+};
 
 /**
  * Renderer functions
@@ -122,11 +395,50 @@ bool refract_renderer_init(renderer_t* renderer, int width, int height);
 bool refract_renderer_resize(renderer_t* renderer, int width, int height);
 iterc_t refract_renderer_iterate(renderer_t* renderer, params_t* params, iterc_t iters);
 bool refract_renderer_render(renderer_t* renderer, color_t* pixels, int stride, mapping_t mapping);
+bool refract_renderer_set_threads(renderer_t* renderer, int threads);
+void refract_renderer_set_strategy(renderer_t* renderer, strategy_t strategy);
+void refract_renderer_set_iters_limit(renderer_t* renderer, iterc_t limit);
+void refract_renderer_cancel(renderer_t* renderer);
+void refract_renderer_invalidate(renderer_t* renderer);
+int refract_renderer_active_count(renderer_t* renderer);
+int refract_renderer_pending_count(renderer_t* renderer);
 void refract_renderer_free(renderer_t* renderer);
 
+/**
+ * Kernel tables indexed by FUNC_INDEX
+ */
+extern const kernel_t refract_scalar_kernels[];
+extern const kernel_t refract_simd_kernels[];
+extern const kernel_t refract_double_kernels[];
+extern const kernel_t refract_dd_kernels[];
+extern const kernel_t refract_perturb_kernels[];
+bool refract_simd_available(void);
+precision_t refract_params_precision(const params_t* params);
+bool refract_params_set_exact(params_t* params, const char* re, const char* im);
+
+/**
+ * Reference orbit functions
+ */
+bool refract_orbit_update(orbit_t* orbit, const params_t* params, int length, bool reset);
+void refract_orbit_free(orbit_t* orbit);
+
+/**
+ * Memory functions
+ */
+void* refract_aligned_alloc(size_t size);
+void refract_aligned_free(void* ptr);
+
 /**
  * Palette functions
  */
 bool refract_palette_init(palette_t* palette, int size, color_t set_color);
 bool refract_palette_gradient(palette_t* palette, color_t* colors, float* anchors, int points, float bias);
 void refract_palette_free(palette_t* palette);
+
+/**
+ * Worker pool functions
+ */
+bool refract_pool_init(pool_t* pool, int size);
+void refract_pool_run(pool_t* pool, job_t job, void* arg);
+int refract_pool_default_size(void);
+void refract_pool_free(pool_t* pool);
@@ -20,103 +20,83 @@
 #include "inc/refract.h"
 
 /**
- * Iterates z = z^2 + c
+ * Raises z to a constant degree by squaring, given the squares of its parts which have already been
+ * calculated. Lower degrees have their own formulas which take fewer multiplications.
  */
-void refract_renderer_iterate_m2(renderer_t* renderer, complex_t offset, float_t zoom, iterc_t max_iters, bool use_cache) {
-	// Calculate screen dimensions
-	const int half_cx = renderer->width / 2;
-	const int half_cy = renderer->height / 2;
-	const float_t offset_re = offset.re;
-	const float_t offset_im = offset.im;
-	const float_t inv_zoom = 1 / zoom;
-	const iterc_t cache_max_iters = renderer->cache_max_iters;
-
-	// Allow optimized access to memory locations
-	iterc_t* restrict iter_buffer = renderer->iter_buffer;
-	complex_t* restrict z_cache = renderer->z_cache;
-
-	for (int y = 0, index = 0; y < renderer->height; ++y) {
-		for (int x = 0; x < renderer->width; ++x, ++index) {
-			iterc_t iters;
-			float_t zr, zi;
-
-			// Only refine locations that reached maximum iterations previously
-			if (use_cache) {
-				iters = iter_buffer[index];
-				if (iters != cache_max_iters)
-					continue;
-
-				// Load z value from cache
-				complex_t z = z_cache[index];
-				zr = z.re;
-				zi = z.im;
-			}
-
-			// Convert from pixel space to complex space
-			float_t cr = (x - half_cx) * inv_zoom + offset_re;
-			float_t ci = (half_cy - y) * inv_zoom + offset_im;
-
-			// If not doing refinement then initialize values
-			if (!use_cache) {
-				iters = 0;
-				zr = cr;
-				zi = ci;
+static inline __attribute__((always_inline)) void refract_pow(float_t zr, float_t zi, float_t zr_2, float_t zi_2, const int degree, float_t* pr, float_t* pi) {
+	float_t sr = zr_2 - zi_2, si = 2 * zr * zi;
+	float_t rr = zr, ri = zi;
+	bool started = (degree & 1);
+
+	for (int bit = 2; bit <= degree; bit <<= 1) {
+		if (bit > 2) {
+			float_t t = sr * sr - si * si;
+			si = 2 * sr * si;
+			sr = t;
+		}
+		if (degree & bit) {
+			if (started) {
+				float_t t = rr * sr - ri * si;
+				ri = rr * si + ri * sr;
+				rr = t;
 			}
-
-			// Pre-calculate squares
-			float_t zr_2 = zr * zr;
-			float_t zi_2 = zi * zi;
-
-			// Iterate z = z^2 + c
-			while ((zr_2 + zi_2 < 4) && iters < max_iters) {
-				zi = 2 * zr * zi + ci;
-				zr = zr_2 - zi_2 + cr;
-				zr_2 = zr * zr;
-				zi_2 = zi * zi;
-				++iters;
+			else {
+				rr = sr;
+				ri = si;
 			}
-
-			// Store result in iteration buffer
-			iter_buffer[index] = iters;
-
-			// Store z in cache for possible refinement in next frame
-			complex_t z = { zr, zi };
-			z_cache[index] = z;
+			started = true;
 		}
 	}
+
+	*pr = rr;
+	*pi = ri;
 }
 
 /**
- * Iterates z = z^3 + c
+ * Iterates z = z^d + c, or z = z^d + k for a Julia set, over the given band's share of the pixels
  */
-void refract_renderer_iterate_m3(renderer_t* renderer, complex_t offset, float_t zoom, iterc_t max_iters, bool use_cache) {
+static inline __attribute__((always_inline)) void refract_scalar_iterate(renderer_t* renderer, const params_t* params, iterc_t max_iters, iterc_t start_iters, const int* pixels, int count, int band, int bands, const int degree, const bool julia) {
 	// Calculate screen dimensions
 	const int half_cx = renderer->width / 2;
 	const int half_cy = renderer->height / 2;
-	const float_t offset_re = offset.re;
-	const float_t offset_im = offset.im;
-	const float_t inv_zoom = 1 / zoom;
-	const iterc_t cache_max_iters = renderer->cache_max_iters;
+	const float_t offset_re = (float_t)params->offset.re;
+	const float_t offset_im = (float_t)params->offset.im;
+	const float_t inv_zoom = 1 / (float_t)params->zoom;
+	const float_t period_tolerance = PERIOD_TOLERANCE * inv_zoom;
+	const float_t period_tolerance_2 = period_tolerance * period_tolerance;
+	const float_t kr = (float_t)params->func.k.re;
+	const float_t ki = (float_t)params->func.k.im;
+	const bool use_cache = start_iters > 0;
 
 	// Allow optimized access to memory locations
+	const int plane = Z_PLANE_SIZE(renderer);
 	iterc_t* restrict iter_buffer = renderer->iter_buffer;
-	complex_t* restrict z_cache = renderer->z_cache;
-
-	for (int y = 0, index = 0; y < renderer->height; ++y) {
-		for (int x = 0; x < renderer->width; ++x, ++index) {
+	float_t* restrict z_cache_re = (float_t*)renderer->z_cache;
+	float_t* restrict z_cache_im = z_cache_re + plane;
+	float_t* restrict check_cache_re = z_cache_im + plane;
+	float_t* restrict check_cache_im = check_cache_re + plane;
+	const int width = renderer->width;
+
+	// Pixels are dealt out to bands in chunks so that each gets a similar share of the work
+	for (int chunk = band * ACTIVE_CHUNK; chunk < count; chunk += bands * ACTIVE_CHUNK) {
+		const int chunk_end = MIN(chunk + ACTIVE_CHUNK, count);
+
+		for (int i = chunk; i < chunk_end; ++i) {
+			const int index = pixels[i];
+			const int x = index % width;
+			const int y = index / width;
 			iterc_t iters;
-			float_t zr, zi;
+			float_t zr, zi, check_r, check_i;
 
-			// Only refine locations that reached maximum iterations previously
+			// Refine locations from where the previous frame left off
 			if (use_cache) {
-				iters = iter_buffer[index];
-				if (iters != cache_max_iters)
-					continue;
+				iters = start_iters;
 
 				// Load z value from cache
-				complex_t z = z_cache[index];
-				zr = z.re;
-				zi = z.im;
+				zr = z_cache_re[index];
+				zi = z_cache_im[index];
+				check_r = check_cache_re[index];
+				check_i = check_cache_im[index];
 			}
 
 			// Convert from pixel space to complex space
@@ -125,97 +105,76 @@ void refract_renderer_iterate_m3(renderer_t* renderer, complex_t offset, float_t
 
 			// If not doing refinement then initialize values
 			if (!use_cache) {
+				// Skip pixels which are known to be in the set
+				if (refract_interior_check(degree, julia, cr, ci)) {
+					iter_buffer[index] = ITERC_SET;
+					continue;
+				}
+
 				iters = 0;
-				zr = cr;
-				zi = ci;
+				zr = check_r = cr;
+				zi = check_i = ci;
 			}
 
+			// Julia sets add the same constant to every pixel
+			const float_t ar = julia ? kr : cr;
+			const float_t ai = julia ? ki : ci;
+
 			// Pre-calculate squares
 			float_t zr_2 = zr * zr;
 			float_t zi_2 = zi * zi;
 
-			// Iterate z = z^3 + c
+			// Constant degree means the compiler only keeps one of these formulas
 			while ((zr_2 + zi_2 < 4) && iters < max_iters) {
-				zi = zi * (3 * zr_2 - zi_2) + ci;
-				zr = zr * (zr_2 - 3 * zi_2) + cr;
+				if (degree == 2) {
+					zi = 2 * zr * zi + ai;
+					zr = zr_2 - zi_2 + ar;
+				}
+				else if (degree == 3) {
+					zi = zi * (3 * zr_2 - zi_2) + ai;
+					zr = zr * (zr_2 - 3 * zi_2) + ar;
+				}
+				else if (degree == 4) {
+					zi = 4 * zr * zi * (zr_2 - zi_2) + ai;
+					zr = zr_2 * zr_2 - 6 * zr_2 * zi_2 + zi_2 * zi_2 + ar;
+				}
+				else {
+					float_t pr, pi;
+					refract_pow(zr, zi, zr_2, zi_2, degree, &pr, &pi);
+					zr = pr + ar;
+					zi = pi + ai;
+				}
 				zr_2 = zr * zr;
 				zi_2 = zi * zi;
 				++iters;
+
+				// Has the orbit come back to its check point?
+				float_t dr = zr - check_r;
+				float_t di = zi - check_i;
+				if (dr * dr + di * di < period_tolerance_2) {
+					iters = ITERC_SET;
+					break;
+				}
+
+				if (PERIOD_CHECKPOINT(iters)) {
+					check_r = zr;
+					check_i = zi;
+				}
 			}
 
 			// Store result in iteration buffer
 			iter_buffer[index] = iters;
 
 			// Store z in cache for possible refinement in next frame
-			complex_t z = { zr, zi };
-			z_cache[index] = z;
+			z_cache_re[index] = zr;
+			z_cache_im[index] = zi;
+			check_cache_re[index] = check_r;
+			check_cache_im[index] = check_i;
 		}
 	}
 }
 
 /**
- * Iterates z = z^4 + c
+ * Table of scalar kernels indexed by function
  */
-void refract_renderer_iterate_m4(renderer_t* renderer, complex_t offset, float_t zoom, iterc_t max_iters, bool use_cache) {
-	// Calculate screen dimensions
-	const int half_cx = renderer->width / 2;
-	const int half_cy = renderer->height / 2;
-	const float_t offset_re = offset.re;
-	const float_t offset_im = offset.im;
-	const float_t inv_zoom = 1 / zoom;
-	const iterc_t cache_max_iters = renderer->cache_max_iters;
-
-	// Allow optimized access to memory locations
-	iterc_t* restrict iter_buffer = renderer->iter_buffer;
-	complex_t* restrict z_cache = renderer->z_cache;
-
-	for (int y = 0, index = 0; y < renderer->height; ++y) {
-		for (int x = 0; x < renderer->width; ++x, ++index) {
-			iterc_t iters;
-			float_t zr, zi;
-
-			// Only refine locations that reached maximum iterations previously
-			if (use_cache) {
-				iters = iter_buffer[index];
-				if (iters != cache_max_iters)
-					continue;
-
-				// Load z value from cache
-				complex_t z = z_cache[index];
-				zr = z.re;
-				zi = z.im;
-			}
-
-			// Convert from pixel space to complex space
-			float_t cr = (x - half_cx) * inv_zoom + offset_re;
-			float_t ci = (half_cy - y) * inv_zoom + offset_im;
-
-			// If not doing refinement then initialize values
-			if (!use_cache) {
-				iters = 0;
-				zr = cr;
-				zi = ci;
-			}
-
-			// Pre-calculate squares
-			float_t zr_2 = zr * zr;
-			float_t zi_2 = zi * zi;
-
-			// Iterate z = z^4 + c
-			while ((zr_2 + zi_2 < 4) && iters < max_iters) {
-				zi = 4 * zr * zi * (zr_2 - zi_2) + ci;
-				zr = zr_2 * zr_2 - 6 * zr_2 * zi_2 + zi_2 * zi_2 + cr;
-				zr_2 = zr * zr;
-				zi_2 = zi * zi;
-				++iters;
-			}
-
-			// Store result in iteration buffer
-			iter_buffer[index] = iters;
-
-			// Store z in cache for possible refinement in next frame
-			complex_t z = { zr, zi };
-			z_cache[index] = z;
-		}
-	}
-}
+KERNEL_TABLE(refract_scalar_kernels, refract_scalar_iterate)
@@ -0,0 +1,352 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ *
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include "inc/refract.h"
+
+/**
+ * Bits of fixed point precision to keep beyond those needed to tell pixels apart
+ */
+#define ORBIT_GUARD_BITS 64
+
+/**
+ * Length which reference orbit buffers start at, after which they double whenever they fill up
+ */
+#define ORBIT_CAPACITY_MIN 4096
+
+/**
+ * Computes the next value of the reference orbit in fixed point
+ */
+static void refract_orbit_step(orbit_t* orbit, int degree) {
+	const int n = orbit->limbs;
+	bigfix_t zr2, zi2, t1, t2;
+
+	refract_bigfix_mul(&zr2, &orbit->zr, &orbit->zr, n);
+	refract_bigfix_mul(&zi2, &orbit->zi, &orbit->zi, n);
+
+	switch (degree) {
+	case 2:
+		// zi = 2 * zr * zi + ci, zr = zr^2 - zi^2 + cr
+		refract_bigfix_mul(&t1, &orbit->zr, &orbit->zi, n);
+		refract_bigfix_mul_int(&t1, &t1, 2, n);
+		refract_bigfix_add(&orbit->zi, &t1, &orbit->ci, n);
+		refract_bigfix_sub(&t1, &zr2, &zi2, n);
+		refract_bigfix_add(&orbit->zr, &t1, &orbit->cr, n);
+		break;
+	case 3:
+		// zi = zi * (3 * zr^2 - zi^2) + ci, zr = zr * (zr^2 - 3 * zi^2) + cr
+		refract_bigfix_mul_int(&t1, &zr2, 3, n);
+		refract_bigfix_sub(&t1, &t1, &zi2, n);
+		refract_bigfix_mul(&t1, &orbit->zi, &t1, n);
+		refract_bigfix_mul_int(&t2, &zi2, 3, n);
+		refract_bigfix_sub(&t2, &zr2, &t2, n);
+		refract_bigfix_mul(&t2, &orbit->zr, &t2, n);
+		refract_bigfix_add(&orbit->zi, &t1, &orbit->ci, n);
+		refract_bigfix_add(&orbit->zr, &t2, &orbit->cr, n);
+		break;
+	case 4:
+		// zi = 4 * zr * zi * (zr^2 - zi^2) + ci, zr = zr^4 - 6 * zr^2 * zi^2 + zi^4 + cr
+		refract_bigfix_mul(&t1, &orbit->zr, &orbit->zi, n);
+		refract_bigfix_sub(&t2, &zr2, &zi2, n);
+		refract_bigfix_mul(&t1, &t1, &t2, n);
+		refract_bigfix_mul_int(&t1, &t1, 4, n);
+		refract_bigfix_add(&orbit->zi, &t1, &orbit->ci, n);
+		refract_bigfix_mul(&t1, &zr2, &zi2, n);
+		refract_bigfix_mul_int(&t1, &t1, 6, n);
+		refract_bigfix_mul(&zr2, &zr2, &zr2, n);
+		refract_bigfix_mul(&zi2, &zi2, &zi2, n);
+		refract_bigfix_sub(&t2, &zr2, &t1, n);
+		refract_bigfix_add(&t2, &t2, &zi2, n);
+		refract_bigfix_add(&orbit->zr, &t2, &orbit->cr, n);
+		break;
+	default: {
+			// z^d by squaring, starting from z^2 = zr^2 - zi^2 + 2 * zr * zi * i
+			bigfix_t sr, si, rr = orbit->zr, ri = orbit->zi;
+			bool started = (degree & 1);
+
+			refract_bigfix_sub(&sr, &zr2, &zi2, n);
+			refract_bigfix_mul(&si, &orbit->zr, &orbit->zi, n);
+			refract_bigfix_mul_int(&si, &si, 2, n);
+
+			for (int bit = 2; bit <= degree; bit <<= 1) {
+				if (bit > 2) {
+					refract_bigfix_mul(&t1, &sr, &sr, n);
+					refract_bigfix_mul(&t2, &si, &si, n);
+					refract_bigfix_mul(&si, &sr, &si, n);
+					refract_bigfix_mul_int(&si, &si, 2, n);
+					refract_bigfix_sub(&sr, &t1, &t2, n);
+				}
+				if (degree & bit) {
+					if (started) {
+						refract_bigfix_mul(&t1, &rr, &sr, n);
+						refract_bigfix_mul(&t2, &ri, &si, n);
+						refract_bigfix_mul(&zr2, &rr, &si, n);
+						refract_bigfix_mul(&zi2, &ri, &sr, n);
+						refract_bigfix_sub(&rr, &t1, &t2, n);
+						refract_bigfix_add(&ri, &zr2, &zi2, n);
+					}
+					else {
+						rr = sr;
+						ri = si;
+					}
+					started = true;
+				}
+			}
+
+			refract_bigfix_add(&orbit->zr, &rr, &orbit->cr, n);
+			refract_bigfix_add(&orbit->zi, &ri, &orbit->ci, n);
+			break;
+		}
+	}
+}
+
+/**
+ * Restarts or extends the reference orbit at the centre of the view so that it has at least the
+ * given length, or has escaped
+ */
+bool refract_orbit_update(orbit_t* orbit, const params_t* params, int length, bool reset) {
+	// Orbit buffers are allocated on first use
+	if (!orbit->re)
+		reset = true;
+
+	// Grow orbit buffers to the length needed
+	if (length > orbit->capacity) {
+		int capacity = MAX(length, MAX(2 * orbit->capacity, ORBIT_CAPACITY_MIN));
+		double* re = realloc(orbit->re, capacity * sizeof (double));
+		if (re)
+			orbit->re = re;
+		double* im = realloc(orbit->im, capacity * sizeof (double));
+		if (im)
+			orbit->im = im;
+
+		if (!re || !im) {
+			refract_orbit_free(orbit);
+			return false;
+		}
+		orbit->capacity = capacity;
+	}
+
+	if (reset) {
+		// Enough fraction limbs to resolve a pixel, plus guard bits for the errors iteration amplifies
+		double magnitude = MAX(MAX(fabs(params->offset.re), fabs(params->offset.im)), 2.0);
+		int bits;
+		frexp(magnitude * params->zoom, &bits);
+		orbit->limbs = MIN(1 + (bits + ORBIT_GUARD_BITS + 31) / 32, BIGFIX_LIMBS_MAX);
+
+		// Use the exact offset if there is one, truncated to the precision needed
+		if (params->exact) {
+			memcpy(orbit->cr.limbs, params->exact_re.limbs, orbit->limbs * sizeof (uint32_t));
+			memcpy(orbit->ci.limbs, params->exact_im.limbs, orbit->limbs * sizeof (uint32_t));
+		}
+		else {
+			refract_bigfix_from_double(&orbit->cr, params->offset.re, orbit->limbs);
+			refract_bigfix_from_double(&orbit->ci, params->offset.im, orbit->limbs);
+		}
+		memset(&orbit->zr, 0, sizeof (bigfix_t));
+		memset(&orbit->zi, 0, sizeof (bigfix_t));
+
+		orbit->re[0] = orbit->im[0] = 0;
+		orbit->length = 1;
+		orbit->escaped = false;
+	}
+
+	while (orbit->length < length && !orbit->escaped) {
+		refract_orbit_step(orbit, params->func.degree);
+
+		double zr = refract_bigfix_to_double(&orbit->zr, orbit->limbs);
+		double zi = refract_bigfix_to_double(&orbit->zi, orbit->limbs);
+		orbit->re[orbit->length] = zr;
+		orbit->im[orbit->length] = zi;
+		++orbit->length;
+
+		// Stop once the reference escapes as further values would overflow the integer limb
+		if (zr * zr + zi * zi >= 4)
+			orbit->escaped = true;
+	}
+
+	return true;
+}
+
+/**
+ * Frees a reference orbit
+ */
+void refract_orbit_free(orbit_t* orbit) {
+	SAFE_FREE(orbit->re);
+	SAFE_FREE(orbit->im);
+	orbit->length = 0;
+	orbit->capacity = 0;
+}
+
+/**
+ * Iterates the given band's share of the pixels as deltas from the reference orbit. The z cache
+ * holds planes for the real and imaginary parts of each pixel's delta and a plane for its position
+ * in the orbit.
+ *
+ * A pixel whose value gets smaller than its delta is rebased onto the start of the orbit, i.e. its
+ * value becomes the new delta. Without this the delta loses all precision relative to the value
+ * and the pixel glitches. Pixels are also rebased if the reference escapes before they do.
+ */
+static inline __attribute__((always_inline)) void refract_perturb_iterate(renderer_t* renderer, const params_t* params, iterc_t max_iters, iterc_t start_iters, const int* pixels, int count, int band, int bands, const int degree, const bool julia) {
+	// Only instantiated for Multibrot sets, as the table has no Julia entries
+	(void)julia;
+
+	// Calculate screen dimensions
+	const int half_cx = renderer->width / 2;
+	const int half_cy = renderer->height / 2;
+	const double inv_zoom = 1 / params->zoom;
+	const bool use_cache = start_iters > 0;
+
+	// Reference orbit is read-only while the bands run
+	const double* restrict orbit_re = renderer->orbit.re;
+	const double* restrict orbit_im = renderer->orbit.im;
+	const int orbit_end = renderer->orbit.escaped ? (renderer->orbit.length - 1) : -1;
+
+	// Allow optimized access to memory locations
+	const int plane = Z_PLANE_SIZE(renderer);
+	iterc_t* restrict iter_buffer = renderer->iter_buffer;
+	double* restrict dz_cache_re = (double*)renderer->z_cache;
+	double* restrict dz_cache_im = dz_cache_re + plane;
+	uint32_t* restrict ref_cache = (uint32_t*)(dz_cache_im + plane);
+	const int width = renderer->width;
+
+	// Pixels are dealt out to bands in chunks so that each gets a similar share of the work
+	for (int chunk = band * ACTIVE_CHUNK; chunk < count; chunk += bands * ACTIVE_CHUNK) {
+		const int chunk_end = MIN(chunk + ACTIVE_CHUNK, count);
+
+		for (int i = chunk; i < chunk_end; ++i) {
+			const int index = pixels[i];
+			const int x = index % width;
+			const int y = index / width;
+
+			// Offset from the reference in complex space
+			const double dcr = (x - half_cx) * inv_zoom;
+			const double dci = (half_cy - y) * inv_zoom;
+			double dzr, dzi;
+			int ref;
+			iterc_t niters;
+
+			// Initialize delta, orbit position and iteration count, either from cache or fresh.
+			// Orbit starts at z0 = 0 so a fresh pixel is at position 1 where z = c.
+			if (use_cache) {
+				dzr = dz_cache_re[index];
+				dzi = dz_cache_im[index];
+				ref = ref_cache[index];
+				niters = start_iters;
+			}
+			else {
+				dzr = dcr;
+				dzi = dci;
+				ref = 1;
+				niters = 0;
+			}
+
+			double zr = orbit_re[ref] + dzr;
+			double zi = orbit_im[ref] + dzi;
+
+			// Iterate from where we left off
+			while ((zr * zr + zi * zi < 4) && niters < max_iters) {
+				const double ref_re = orbit_re[ref];
+				const double ref_im = orbit_im[ref];
+				double ar, ai;
+
+				// Delta is updated as dz = a * dz + dc, where a is (z^n - ref^n) / dz expanded.
+				// Constant degree means the compiler only keeps one of these formulas.
+				if (degree == 2) {
+					// a = 2 * ref + dz
+					ar = 2 * ref_re + dzr;
+					ai = 2 * ref_im + dzi;
+				}
+				else if (degree == 3) {
+					// a = 3 * ref^2 + 3 * ref * dz + dz^2
+					double sr = 3 * ref_re + dzr, si = 3 * ref_im + dzi;
+					double tr = sr * dzr - si * dzi, ti = sr * dzi + si * dzr;
+					ar = 3 * (ref_re * ref_re - ref_im * ref_im) + tr;
+					ai = 6 * ref_re * ref_im + ti;
+				}
+				else if (degree == 4) {
+					// a = 4 * ref^3 + 6 * ref^2 * dz + 4 * ref * dz^2 + dz^3
+					double r2r = ref_re * ref_re - ref_im * ref_im, r2i = 2 * ref_re * ref_im;
+					double sr = 4 * ref_re + dzr, si = 4 * ref_im + dzi;
+					double tr = sr * dzr - si * dzi + 6 * r2r, ti = sr * dzi + si * dzr + 6 * r2i;
+					double ur = tr * dzr - ti * dzi, ui = tr * dzi + ti * dzr;
+					ar = 4 * (r2r * ref_re - r2i * ref_im) + ur;
+					ai = 4 * (r2r * ref_im + r2i * ref_re) + ui;
+				}
+				else {
+					// a = sum of C(d, m + 1) * ref^(d - 1 - m) * dz^m for m = 0 to d - 1, by Horner's method in dz
+					double pow_re[DEGREE_MAX], pow_im[DEGREE_MAX];
+					pow_re[0] = 1;
+					pow_im[0] = 0;
+					for (int j = 1; j < degree; ++j) {
+						pow_re[j] = pow_re[j - 1] * ref_re - pow_im[j - 1] * ref_im;
+						pow_im[j] = pow_re[j - 1] * ref_im + pow_im[j - 1] * ref_re;
+					}
+
+					int binomial = degree;
+					ar = 1;
+					ai = 0;
+					for (int m = degree - 2; m >= 0; --m) {
+						double tr = ar * dzr - ai * dzi + binomial * pow_re[degree - 1 - m];
+						ai = ar * dzi + ai * dzr + binomial * pow_im[degree - 1 - m];
+						ar = tr;
+						binomial = binomial * (m + 1) / (degree - m);
+					}
+				}
+
+				const double new_dzr = ar * dzr - ai * dzi + dcr;
+				dzi = ar * dzi + ai * dzr + dci;
+				dzr = new_dzr;
+				++ref;
+				++niters;
+
+				zr = orbit_re[ref] + dzr;
+				zi = orbit_im[ref] + dzi;
+
+				// Rebase if the delta has become bigger than the value or the reference has escaped
+				if (zr * zr + zi * zi < dzr * dzr + dzi * dzi || ref == orbit_end) {
+					dzr = zr;
+					dzi = zi;
+					ref = 0;
+				}
+			}
+
+			iter_buffer[index] = niters;
+			dz_cache_re[index] = dzr;
+			dz_cache_im[index] = dzi;
+			ref_cache[index] = ref;
+		}
+	}
+}
+
+KERNEL_INSTANCE(refract_perturb_iterate, 2, false)
+KERNEL_INSTANCE(refract_perturb_iterate, 3, false)
+KERNEL_INSTANCE(refract_perturb_iterate, 4, false)
+KERNEL_INSTANCE(refract_perturb_iterate, 5, false)
+KERNEL_INSTANCE(refract_perturb_iterate, 6, false)
+KERNEL_INSTANCE(refract_perturb_iterate, 7, false)
+KERNEL_INSTANCE(refract_perturb_iterate, 8, false)
+
+/**
+ * Table of perturbation kernels indexed by function. Julia sets have no entries as rebasing relies on
+ * the reference orbit starting at zero, which only holds for the Multibrot sets.
+ */
+const kernel_t refract_perturb_kernels[FUNC_COUNT] = {
+	refract_perturb_iterate_2_false, NULL, refract_perturb_iterate_3_false, NULL, refract_perturb_iterate_4_false, NULL,
+	refract_perturb_iterate_5_false, NULL, refract_perturb_iterate_6_false, NULL, refract_perturb_iterate_7_false, NULL,
+	refract_perturb_iterate_8_false, NULL
+};
@@ -0,0 +1,313 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ *
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include "inc/refract.h"
+#include "inc/ddouble.h"
+
+/**
+ * Raises z to a constant degree by squaring, given the squares of its parts which have already been
+ * calculated. Lower degrees have their own formulas which take fewer multiplications.
+ */
+static inline __attribute__((always_inline)) void refract_double_pow(double zr, double zi, double zr2, double zi2, const int degree, double* pr, double* pi) {
+	double sr = zr2 - zi2, si = 2 * zr * zi;
+	double rr = zr, ri = zi;
+	bool started = (degree & 1);
+
+	for (int bit = 2; bit <= degree; bit <<= 1) {
+		if (bit > 2) {
+			double t = sr * sr - si * si;
+			si = 2 * sr * si;
+			sr = t;
+		}
+		if (degree & bit) {
+			if (started) {
+				double t = rr * sr - ri * si;
+				ri = rr * si + ri * sr;
+				rr = t;
+			}
+			else {
+				rr = sr;
+				ri = si;
+			}
+			started = true;
+		}
+	}
+
+	*pr = rr;
+	*pi = ri;
+}
+
+/**
+ * Raises z to a constant degree by squaring in double-double precision
+ */
+static inline __attribute__((always_inline)) void refract_dd_pow(ddouble_t zr, ddouble_t zi, ddouble_t zr2, ddouble_t zi2, const int degree, ddouble_t* pr, ddouble_t* pi) {
+	ddouble_t sr = dd_sub(zr2, zi2), si = dd_scale(dd_mul(zr, zi), 2);
+	ddouble_t rr = zr, ri = zi;
+	bool started = (degree & 1);
+
+	for (int bit = 2; bit <= degree; bit <<= 1) {
+		if (bit > 2) {
+			ddouble_t t = dd_sub(dd_sqr(sr), dd_sqr(si));
+			si = dd_scale(dd_mul(sr, si), 2);
+			sr = t;
+		}
+		if (degree & bit) {
+			if (started) {
+				ddouble_t t = dd_sub(dd_mul(rr, sr), dd_mul(ri, si));
+				ri = dd_add(dd_mul(rr, si), dd_mul(ri, sr));
+				rr = t;
+			}
+			else {
+				rr = sr;
+				ri = si;
+			}
+			started = true;
+		}
+	}
+
+	*pr = rr;
+	*pi = ri;
+}
+
+/**
+ * Iterates the given band's share of the pixels in double precision. The z cache holds a plane of
+ * real parts followed by a plane of imaginary parts, then the same for each pixel's periodicity
+ * check point.
+ */
+static inline __attribute__((always_inline)) void refract_double_iterate(renderer_t* renderer, const params_t* params, iterc_t max_iters, iterc_t start_iters, const int* pixels, int count, int band, int bands, const int degree, const bool julia) {
+	// Calculate screen dimensions
+	const int half_cx = renderer->width / 2;
+	const int half_cy = renderer->height / 2;
+	const double offset_re = params->offset.re;
+	const double offset_im = params->offset.im;
+	const double inv_zoom = 1 / params->zoom;
+	const double period_tolerance = PERIOD_TOLERANCE * inv_zoom;
+	const double period_tolerance_2 = period_tolerance * period_tolerance;
+	const double kr = params->func.k.re;
+	const double ki = params->func.k.im;
+	const bool use_cache = start_iters > 0;
+
+	// Allow optimized access to memory locations
+	const int plane = Z_PLANE_SIZE(renderer);
+	iterc_t* restrict iter_buffer = renderer->iter_buffer;
+	double* restrict z_cache_re = (double*)renderer->z_cache;
+	double* restrict z_cache_im = z_cache_re + plane;
+	double* restrict check_cache_re = z_cache_im + plane;
+	double* restrict check_cache_im = check_cache_re + plane;
+	const int width = renderer->width;
+
+	// Pixels are dealt out to bands in chunks so that each gets a similar share of the work
+	for (int chunk = band * ACTIVE_CHUNK; chunk < count; chunk += bands * ACTIVE_CHUNK) {
+		const int chunk_end = MIN(chunk + ACTIVE_CHUNK, count);
+
+		for (int i = chunk; i < chunk_end; ++i) {
+			const int index = pixels[i];
+			const int x = index % width;
+			const int y = index / width;
+
+			// Convert from pixel space to complex space
+			const double cr = (x - half_cx) * inv_zoom + offset_re;
+			const double ci = (half_cy - y) * inv_zoom + offset_im;
+			double zr, zi, check_r, check_i;
+			iterc_t niters;
+
+			// Initialize z and iteration count, either from cache or fresh
+			if (use_cache) {
+				zr = z_cache_re[index];
+				zi = z_cache_im[index];
+				check_r = check_cache_re[index];
+				check_i = check_cache_im[index];
+				niters = start_iters;
+			}
+			else {
+				// Skip pixels which are known to be in the set
+				if (refract_interior_check(degree, julia, cr, ci)) {
+					iter_buffer[index] = ITERC_SET;
+					continue;
+				}
+
+				zr = check_r = cr;
+				zi = check_i = ci;
+				niters = 0;
+			}
+
+			// Julia sets add the same constant to every pixel
+			const double ar = julia ? kr : cr;
+			const double ai = julia ? ki : ci;
+
+			// Precalculate squares
+			double zr2 = zr * zr;
+			double zi2 = zi * zi;
+
+			// Iterate from where we left off
+			while ((zr2 + zi2 < 4) && niters < max_iters) {
+				// Constant degree means the compiler only keeps one of these formulas
+				if (degree == 2) {
+					zi = 2 * zr * zi + ai;
+					zr = zr2 - zi2 + ar;
+				}
+				else if (degree == 3) {
+					zi = zi * (3 * zr2 - zi2) + ai;
+					zr = zr * (zr2 - 3 * zi2) + ar;
+				}
+				else if (degree == 4) {
+					double zr_new = zr2 * zr2 - 6 * zr2 * zi2 + zi2 * zi2 + ar;
+					zi = 4 * zr * zi * (zr2 - zi2) + ai;
+					zr = zr_new;
+				}
+				else {
+					double pr, pi;
+					refract_double_pow(zr, zi, zr2, zi2, degree, &pr, &pi);
+					zr = pr + ar;
+					zi = pi + ai;
+				}
+
+				zr2 = zr * zr;
+				zi2 = zi * zi;
+				++niters;
+
+				// Has the orbit come back to its check point?
+				double dr = zr - check_r;
+				double di = zi - check_i;
+				if (dr * dr + di * di < period_tolerance_2) {
+					niters = ITERC_SET;
+					break;
+				}
+
+				if (PERIOD_CHECKPOINT(niters)) {
+					check_r = zr;
+					check_i = zi;
+				}
+			}
+
+			iter_buffer[index] = niters;
+			z_cache_re[index] = zr;
+			z_cache_im[index] = zi;
+			check_cache_re[index] = check_r;
+			check_cache_im[index] = check_i;
+		}
+	}
+}
+
+/**
+ * Iterates the given band's share of the pixels in double-double precision. The z cache holds
+ * planes for the high and low parts of the real component followed by planes for the imaginary
+ * component.
+ */
+static inline __attribute__((always_inline)) void refract_dd_iterate(renderer_t* renderer, const params_t* params, iterc_t max_iters, iterc_t start_iters, const int* pixels, int count, int band, int bands, const int degree, const bool julia) {
+	// Calculate screen dimensions
+	const int half_cx = renderer->width / 2;
+	const int half_cy = renderer->height / 2;
+	const ddouble_t offset_re = dd_make(params->offset.re, params->offset_lo.re);
+	const ddouble_t offset_im = dd_make(params->offset.im, params->offset_lo.im);
+	const ddouble_t inv_zoom = dd_recip(params->zoom);
+	const ddouble_t kr = dd_make(params->func.k.re, 0);
+	const ddouble_t ki = dd_make(params->func.k.im, 0);
+	const bool use_cache = start_iters > 0;
+
+	// Allow optimized access to memory locations
+	const int plane = Z_PLANE_SIZE(renderer);
+	iterc_t* restrict iter_buffer = renderer->iter_buffer;
+	double* restrict z_cache_re_hi = (double*)renderer->z_cache;
+	double* restrict z_cache_re_lo = z_cache_re_hi + plane;
+	double* restrict z_cache_im_hi = z_cache_re_lo + plane;
+	double* restrict z_cache_im_lo = z_cache_im_hi + plane;
+	const int width = renderer->width;
+
+	// Pixels are dealt out to bands in chunks so that each gets a similar share of the work
+	for (int chunk = band * ACTIVE_CHUNK; chunk < count; chunk += bands * ACTIVE_CHUNK) {
+		const int chunk_end = MIN(chunk + ACTIVE_CHUNK, count);
+
+		for (int i = chunk; i < chunk_end; ++i) {
+			const int index = pixels[i];
+			const int x = index % width;
+			const int y = index / width;
+
+			// Convert from pixel space to complex space
+			const ddouble_t cr = dd_add(dd_mul_d(inv_zoom, x - half_cx), offset_re);
+			const ddouble_t ci = dd_add(dd_mul_d(inv_zoom, half_cy - y), offset_im);
+			ddouble_t zr, zi;
+			iterc_t niters;
+
+			// Initialize z and iteration count, either from cache or fresh
+			if (use_cache) {
+				zr = dd_make(z_cache_re_hi[index], z_cache_re_lo[index]);
+				zi = dd_make(z_cache_im_hi[index], z_cache_im_lo[index]);
+				niters = start_iters;
+			}
+			else {
+				zr = cr;
+				zi = ci;
+				niters = 0;
+			}
+
+			// Julia sets add the same constant to every pixel
+			const ddouble_t ar = julia ? kr : cr;
+			const ddouble_t ai = julia ? ki : ci;
+
+			// Precalculate squares
+			ddouble_t zr2 = dd_sqr(zr);
+			ddouble_t zi2 = dd_sqr(zi);
+
+			// Iterate from where we left off, escape test only needs the high parts
+			while ((zr2.hi + zi2.hi < 4) && niters < max_iters) {
+				// Constant degree means the compiler only keeps one of these formulas
+				if (degree == 2) {
+					zi = dd_add(dd_scale(dd_mul(zr, zi), 2), ai);
+					zr = dd_add(dd_sub(zr2, zi2), ar);
+				}
+				else if (degree == 3) {
+					zi = dd_add(dd_mul(zi, dd_sub(dd_mul_d(zr2, 3), zi2)), ai);
+					zr = dd_add(dd_mul(zr, dd_sub(zr2, dd_mul_d(zi2, 3))), ar);
+				}
+				else if (degree == 4) {
+					ddouble_t zr_new = dd_add(dd_add(dd_sub(dd_sqr(zr2), dd_mul_d(dd_mul(zr2, zi2), 6)), dd_sqr(zi2)), ar);
+					zi = dd_add(dd_scale(dd_mul(dd_mul(zr, zi), dd_sub(zr2, zi2)), 4), ai);
+					zr = zr_new;
+				}
+				else {
+					ddouble_t pr, pi;
+					refract_dd_pow(zr, zi, zr2, zi2, degree, &pr, &pi);
+					zr = dd_add(pr, ar);
+					zi = dd_add(pi, ai);
+				}
+
+				zr2 = dd_sqr(zr);
+				zi2 = dd_sqr(zi);
+				++niters;
+			}
+
+			iter_buffer[index] = niters;
+			z_cache_re_hi[index] = zr.hi;
+			z_cache_re_lo[index] = zr.lo;
+			z_cache_im_hi[index] = zi.hi;
+			z_cache_im_lo[index] = zi.lo;
+		}
+	}
+}
+
+/**
+ * Table of double precision kernels indexed by function
+ */
+KERNEL_TABLE(refract_double_kernels, refract_double_iterate)
+
+/**
+ * Table of double-double precision kernels indexed by function
+ */
+KERNEL_TABLE(refract_dd_kernels, refract_dd_iterate)
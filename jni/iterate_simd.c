@@ -0,0 +1,349 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ *
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include "inc/refract.h"
+
+/**
+ * Vector operations on 4 floats at a time. These do exactly the same IEEE single precision operations
+ * as the scalar kernels in the same order, so results are bit-identical. The one exception is ARMv7
+ * NEON which always flushes denormals to zero, but an orbit has to pass within 1e-38 of the origin
+ * for that to make any difference.
+ */
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+
+#include <arm_neon.h>
+#ifdef __ANDROID__
+#include <cpu-features.h>
+#endif
+
+#define REFRACT_SIMD
+
+typedef float32x4_t vfloat_t;
+typedef uint32x4_t vmask_t;
+typedef uint32x4_t vcount_t;
+
+#define VSET(x)				vdupq_n_f32(x)
+#define VLOAD(p)			vld1q_f32(p)
+#define VSTORE(p, v)		vst1q_f32(p, v)
+#define VADD(a, b)			vaddq_f32(a, b)
+#define VSUB(a, b)			vsubq_f32(a, b)
+#define VMUL(a, b)			vmulq_f32(a, b)
+#define VLT(a, b)			vcltq_f32(a, b)
+#define VAND(a, b)			vandq_u32(a, b)
+#define VOR(a, b)			vorrq_u32(a, b)
+#define VANDNOT(a, b)		vbicq_u32(b, a) // ~a & b
+#define VSELECT(m, a, b)	vbslq_f32(m, a, b)
+#define VMASK_ZERO()		vdupq_n_u32(0)
+#define VMASK_LOAD(p)		vld1q_u32(p)
+#define VMASK_STORE(p, m)	vst1q_u32(p, m)
+#define VCOUNT_ZERO()		vdupq_n_u32(0)
+#define VCOUNT_INC(c, m)	vsubq_u32(c, m) // mask lanes are all ones, i.e. -1
+#define VCOUNT_STORE(p, c)	vst1q_u32(p, c)
+
+static inline bool VANY(vmask_t m) {
+	uint32x2_t pair = vpmax_u32(vget_low_u32(m), vget_high_u32(m));
+	return vget_lane_u32(vpmax_u32(pair, pair), 0) != 0;
+}
+
+#elif defined(__SSE2__)
+
+#include <emmintrin.h>
+
+#define REFRACT_SIMD
+
+typedef __m128 vfloat_t;
+typedef __m128 vmask_t;
+typedef __m128i vcount_t;
+
+#define VSET(x)				_mm_set1_ps(x)
+#define VLOAD(p)			_mm_load_ps(p)
+#define VSTORE(p, v)		_mm_store_ps(p, v)
+#define VADD(a, b)			_mm_add_ps(a, b)
+#define VSUB(a, b)			_mm_sub_ps(a, b)
+#define VMUL(a, b)			_mm_mul_ps(a, b)
+#define VLT(a, b)			_mm_cmplt_ps(a, b)
+#define VAND(a, b)			_mm_and_ps(a, b)
+#define VOR(a, b)			_mm_or_ps(a, b)
+#define VANDNOT(a, b)		_mm_andnot_ps(a, b) // ~a & b
+#define VSELECT(m, a, b)	_mm_or_ps(_mm_and_ps(m, a), _mm_andnot_ps(m, b))
+#define VMASK_ZERO()		_mm_setzero_ps()
+#define VMASK_LOAD(p)		_mm_castsi128_ps(_mm_load_si128((const __m128i*)(p)))
+#define VMASK_STORE(p, m)	_mm_store_si128((__m128i*)(p), _mm_castps_si128(m))
+#define VCOUNT_ZERO()		_mm_setzero_si128()
+#define VCOUNT_INC(c, m)	_mm_sub_epi32(c, _mm_castps_si128(m)) // mask lanes are all ones, i.e. -1
+#define VCOUNT_STORE(p, c)	_mm_store_si128((__m128i*)(p), c)
+#define VANY(m)				(_mm_movemask_ps(m) != 0)
+
+#endif
+
+#ifdef REFRACT_SIMD
+
+/**
+ * Number of pixels iterated together
+ */
+#define LANES 4
+
+/**
+ * A group of pixels being iterated together
+ */
+typedef struct {
+	float_t zr[LANES] __attribute__((aligned(BUFFER_ALIGN)));
+	float_t zi[LANES] __attribute__((aligned(BUFFER_ALIGN)));
+	float_t cr[LANES] __attribute__((aligned(BUFFER_ALIGN)));
+	float_t ci[LANES] __attribute__((aligned(BUFFER_ALIGN)));
+	float_t check_r[LANES] __attribute__((aligned(BUFFER_ALIGN)));
+	float_t check_i[LANES] __attribute__((aligned(BUFFER_ALIGN)));
+	uint32_t valid[LANES] __attribute__((aligned(BUFFER_ALIGN)));
+	uint32_t settled[LANES] __attribute__((aligned(BUFFER_ALIGN)));
+	uint32_t counts[LANES] __attribute__((aligned(BUFFER_ALIGN)));
+	int index[LANES];
+	int size;
+
+} lanes_t;
+
+/**
+ * Raises z to a constant degree by squaring, given the squares of its parts which have already been
+ * calculated. Does the same operations as the scalar version.
+ */
+static inline __attribute__((always_inline)) void refract_simd_pow(vfloat_t zr, vfloat_t zi, vfloat_t zr_2, vfloat_t zi_2, const int degree, vfloat_t* pr, vfloat_t* pi) {
+	const vfloat_t two = VSET(2);
+	vfloat_t sr = VSUB(zr_2, zi_2), si = VMUL(VMUL(two, zr), zi);
+	vfloat_t rr = zr, ri = zi;
+	bool started = (degree & 1);
+
+	for (int bit = 2; bit <= degree; bit <<= 1) {
+		if (bit > 2) {
+			vfloat_t t = VSUB(VMUL(sr, sr), VMUL(si, si));
+			si = VMUL(VMUL(two, sr), si);
+			sr = t;
+		}
+		if (degree & bit) {
+			if (started) {
+				vfloat_t t = VSUB(VMUL(rr, sr), VMUL(ri, si));
+				ri = VADD(VMUL(rr, si), VMUL(ri, sr));
+				rr = t;
+			}
+			else {
+				rr = sr;
+				ri = si;
+			}
+			started = true;
+		}
+	}
+
+	*pr = rr;
+	*pi = ri;
+}
+
+/**
+ * Iterates a group of pixels which all start at the same iteration count. Lanes drop out as they
+ * escape or are found to be periodic, and the loop exits as soon as none are left.
+ */
+static inline __attribute__((always_inline)) void refract_simd_iterate_lanes(renderer_t* renderer, const params_t* params, lanes_t* lanes, iterc_t start_iters, iterc_t max_iters, float_t period_tolerance_2, const int degree, const bool julia) {
+	const vfloat_t two = VSET(2), three = VSET(3), four = VSET(4), six = VSET(6);
+	const vfloat_t tolerance_2 = VSET(period_tolerance_2);
+
+	// Mark unused lanes as invalid so they never become active
+	for (int l = lanes->size; l < LANES; ++l) {
+		lanes->valid[l] = 0;
+		lanes->zr[l] = lanes->zi[l] = lanes->cr[l] = lanes->ci[l] = lanes->check_r[l] = lanes->check_i[l] = 0;
+	}
+
+	const int plane = Z_PLANE_SIZE(renderer);
+	float_t* z_cache_re = (float_t*)renderer->z_cache;
+	float_t* z_cache_im = z_cache_re + plane;
+	float_t* check_cache_re = z_cache_im + plane;
+	float_t* check_cache_im = check_cache_re + plane;
+
+	vfloat_t zr = VLOAD(lanes->zr);
+	vfloat_t zi = VLOAD(lanes->zi);
+	vfloat_t check_r = VLOAD(lanes->check_r);
+	vfloat_t check_i = VLOAD(lanes->check_i);
+
+	// Julia sets add the same constant to every pixel
+	const vfloat_t ar = julia ? VSET((float_t)params->func.k.re) : VLOAD(lanes->cr);
+	const vfloat_t ai = julia ? VSET((float_t)params->func.k.im) : VLOAD(lanes->ci);
+
+	// Pre-calculate squares
+	vfloat_t zr_2 = VMUL(zr, zr);
+	vfloat_t zi_2 = VMUL(zi, zi);
+
+	vmask_t active = VAND(VMASK_LOAD(lanes->valid), VLT(VADD(zr_2, zi_2), four));
+	vmask_t settled = VMASK_ZERO();
+	vcount_t counts = VCOUNT_ZERO();
+
+	for (iterc_t iters = start_iters; iters < max_iters && VANY(active); ++iters) {
+		vfloat_t new_zr, new_zi;
+
+		// Constant degree means the compiler only keeps one of these formulas
+		if (degree == 2) {
+			new_zi = VADD(VMUL(VMUL(two, zr), zi), ai);
+			new_zr = VADD(VSUB(zr_2, zi_2), ar);
+		}
+		else if (degree == 3) {
+			new_zi = VADD(VMUL(zi, VSUB(VMUL(three, zr_2), zi_2)), ai);
+			new_zr = VADD(VMUL(zr, VSUB(zr_2, VMUL(three, zi_2))), ar);
+		}
+		else if (degree == 4) {
+			new_zi = VADD(VMUL(VMUL(VMUL(four, zr), zi), VSUB(zr_2, zi_2)), ai);
+			new_zr = VADD(VADD(VSUB(VMUL(zr_2, zr_2), VMUL(VMUL(six, zr_2), zi_2)), VMUL(zi_2, zi_2)), ar);
+		}
+		else {
+			vfloat_t pr, pi;
+			refract_simd_pow(zr, zi, zr_2, zi_2, degree, &pr, &pi);
+			new_zr = VADD(pr, ar);
+			new_zi = VADD(pi, ai);
+		}
+
+		// Only update lanes which haven't escaped
+		zr = VSELECT(active, new_zr, zr);
+		zi = VSELECT(active, new_zi, zi);
+		zr_2 = VMUL(zr, zr);
+		zi_2 = VMUL(zi, zi);
+		counts = VCOUNT_INC(counts, active);
+
+		// Lanes whose orbit has come back to its check point are in the set
+		vfloat_t dr = VSUB(zr, check_r);
+		vfloat_t di = VSUB(zi, check_i);
+		vmask_t cycled = VAND(active, VLT(VADD(VMUL(dr, dr), VMUL(di, di)), tolerance_2));
+		settled = VOR(settled, cycled);
+		active = VANDNOT(cycled, active);
+
+		if (PERIOD_CHECKPOINT(iters + 1)) {
+			check_r = VSELECT(active, zr, check_r);
+			check_i = VSELECT(active, zi, check_i);
+		}
+
+		active = VAND(active, VLT(VADD(zr_2, zi_2), four));
+	}
+
+	VSTORE(lanes->zr, zr);
+	VSTORE(lanes->zi, zi);
+	VSTORE(lanes->check_r, check_r);
+	VSTORE(lanes->check_i, check_i);
+	VMASK_STORE(lanes->settled, settled);
+	VCOUNT_STORE(lanes->counts, counts);
+
+	// Store results of valid lanes
+	for (int l = 0; l < lanes->size; ++l) {
+		int index = lanes->index[l];
+		renderer->iter_buffer[index] = lanes->settled[l] ? ITERC_SET : (start_iters + lanes->counts[l]);
+		z_cache_re[index] = lanes->zr[l];
+		z_cache_im[index] = lanes->zi[l];
+		check_cache_re[index] = lanes->check_r[l];
+		check_cache_im[index] = lanes->check_i[l];
+	}
+
+	lanes->size = 0;
+}
+
+/**
+ * Iterates the given band's share of the pixels, gathering them into groups of lanes
+ */
+static inline __attribute__((always_inline)) void refract_simd_iterate(renderer_t* renderer, const params_t* params, iterc_t max_iters, iterc_t start_iters, const int* pixels, int count, int band, int bands, const int degree, const bool julia) {
+	// Calculate screen dimensions
+	const int half_cx = renderer->width / 2;
+	const int half_cy = renderer->height / 2;
+	const float_t offset_re = (float_t)params->offset.re;
+	const float_t offset_im = (float_t)params->offset.im;
+	const float_t inv_zoom = 1 / (float_t)params->zoom;
+	const float_t period_tolerance = PERIOD_TOLERANCE * inv_zoom;
+	const float_t period_tolerance_2 = period_tolerance * period_tolerance;
+	const bool use_cache = start_iters > 0;
+
+	// Not restrict as results are written back to these by refract_simd_iterate_lanes
+	const int plane = Z_PLANE_SIZE(renderer);
+	iterc_t* iter_buffer = renderer->iter_buffer;
+	const float_t* z_cache_re = (float_t*)renderer->z_cache;
+	const float_t* z_cache_im = z_cache_re + plane;
+	const float_t* check_cache_re = z_cache_im + plane;
+	const float_t* check_cache_im = check_cache_re + plane;
+	const int width = renderer->width;
+
+	lanes_t lanes;
+	lanes.size = 0;
+
+	// Pixels are dealt out to bands in chunks so that each gets a similar share of the work
+	for (int chunk = band * ACTIVE_CHUNK; chunk < count; chunk += bands * ACTIVE_CHUNK) {
+		const int chunk_end = MIN(chunk + ACTIVE_CHUNK, count);
+
+		for (int i = chunk; i < chunk_end; ++i) {
+			const int index = pixels[i];
+			const int x = index % width;
+			const int y = index / width;
+
+			// Convert from pixel space to complex space
+			const float_t cr = (x - half_cx) * inv_zoom + offset_re;
+			const float_t ci = (half_cy - y) * inv_zoom + offset_im;
+
+			// Skip pixels which are known to be in the set
+			if (!use_cache && refract_interior_check(degree, julia, cr, ci)) {
+				iter_buffer[index] = ITERC_SET;
+				continue;
+			}
+
+			int l = lanes.size++;
+			lanes.index[l] = index;
+			lanes.valid[l] = 0xFFFFFFFF;
+			lanes.cr[l] = cr;
+			lanes.ci[l] = ci;
+			lanes.zr[l] = use_cache ? z_cache_re[index] : cr;
+			lanes.zi[l] = use_cache ? z_cache_im[index] : ci;
+			lanes.check_r[l] = use_cache ? check_cache_re[index] : cr;
+			lanes.check_i[l] = use_cache ? check_cache_im[index] : ci;
+
+			if (lanes.size == LANES)
+				refract_simd_iterate_lanes(renderer, params, &lanes, start_iters, max_iters, period_tolerance_2, degree, julia);
+		}
+	}
+
+	// Iterate any partially filled group
+	if (lanes.size > 0)
+		refract_simd_iterate_lanes(renderer, params, &lanes, start_iters, max_iters, period_tolerance_2, degree, julia);
+}
+
+/**
+ * Table of SIMD kernels indexed by function
+ */
+KERNEL_TABLE(refract_simd_kernels, refract_simd_iterate)
+
+/**
+ * Checks whether this CPU can run the SIMD kernels
+ */
+bool refract_simd_available(void) {
+#if defined(__arm__) && defined(__ANDROID__)
+	// Not all ARMv7 devices have NEON
+	return (android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM) && (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON);
+#else
+	return true;
+#endif
+}
+
+#else
+
+/**
+ * No SIMD support in this build so fall back to the scalar kernels
+ */
+const kernel_t refract_simd_kernels[FUNC_COUNT] = { NULL };
+
+bool refract_simd_available(void) {
+	return false;
+}
+
+#endif
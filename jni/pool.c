@@ -0,0 +1,162 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ *
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <unistd.h>
+
+#include "inc/refract.h"
+
+/**
+ * Worker thread which runs one band of each job
+ */
+struct worker {
+	pool_t* pool;
+	pthread_t thread;
+	int band;
+};
+
+/**
+ * Main loop of a worker thread
+ */
+static void* refract_pool_worker(void* arg) {
+	struct worker* worker = (struct worker*)arg;
+	pool_t* pool = worker->pool;
+	int last_job_id = 0;
+
+	pthread_mutex_lock(&pool->mutex);
+
+	while (true) {
+		// Wait for a new job or for the pool to be stopped
+		while (!pool->stopping && pool->job_id == last_job_id)
+			pthread_cond_wait(&pool->job_cond, &pool->mutex);
+
+		if (pool->stopping)
+			break;
+
+		last_job_id = pool->job_id;
+		job_t job = pool->job;
+		void* job_arg = pool->job_arg;
+		int bands = pool->size;
+
+		// Run this worker's band of the job without holding the lock
+		pthread_mutex_unlock(&pool->mutex);
+		job(job_arg, worker->band, bands);
+		pthread_mutex_lock(&pool->mutex);
+
+		// Last worker to finish wakes up the caller
+		if (--pool->pending == 0)
+			pthread_cond_signal(&pool->done_cond);
+	}
+
+	pthread_mutex_unlock(&pool->mutex);
+	return NULL;
+}
+
+/**
+ * Initializes a pool with the given number of threads, including the calling thread
+ */
+bool refract_pool_init(pool_t* pool, int size) {
+	memset(pool, 0, sizeof (pool_t));
+
+	if (size <= 0)
+		size = refract_pool_default_size();
+	size = MIN(size, THREADS_MAX);
+
+	pthread_mutex_init(&pool->mutex, NULL);
+	pthread_cond_init(&pool->job_cond, NULL);
+	pthread_cond_init(&pool->done_cond, NULL);
+
+	// Calling thread always runs band zero so only need size - 1 workers
+	pool->size = 1;
+	if (size > 1) {
+		if ((pool->workers = malloc(sizeof (struct worker) * (size - 1))) == NULL)
+			return false;
+
+		for (int w = 0; w < size - 1; ++w) {
+			struct worker* worker = &pool->workers[w];
+			worker->pool = pool;
+			worker->band = w + 1;
+
+			// Settle for fewer threads if the system won't give us more
+			if (pthread_create(&worker->thread, NULL, refract_pool_worker, worker) != 0)
+				break;
+
+			++pool->size;
+		}
+	}
+
+	return true;
+}
+
+/**
+ * Runs a job on every band and returns when all bands are complete
+ */
+void refract_pool_run(pool_t* pool, job_t job, void* arg) {
+	// No need to involve other threads if there aren't any
+	if (pool->size <= 1) {
+		job(arg, 0, 1);
+		return;
+	}
+
+	pthread_mutex_lock(&pool->mutex);
+	pool->job = job;
+	pool->job_arg = arg;
+	pool->pending = pool->size - 1;
+	++pool->job_id;
+	pthread_cond_broadcast(&pool->job_cond);
+	pthread_mutex_unlock(&pool->mutex);
+
+	// Calling thread takes the first band
+	job(arg, 0, pool->size);
+
+	pthread_mutex_lock(&pool->mutex);
+	while (pool->pending > 0)
+		pthread_cond_wait(&pool->done_cond, &pool->mutex);
+	pthread_mutex_unlock(&pool->mutex);
+}
+
+/**
+ * Gets the default pool size, i.e. the number of online CPU cores
+ */
+int refract_pool_default_size(void) {
+	long cores = sysconf(_SC_NPROCESSORS_ONLN);
+	return (cores > 0) ? MIN((int)cores, THREADS_MAX) : 1;
+}
+
+/**
+ * Stops all worker threads and frees the pool
+ */
+void refract_pool_free(pool_t* pool) {
+	if (pool->size == 0)
+		return;
+
+	pthread_mutex_lock(&pool->mutex);
+	pool->stopping = true;
+	pthread_cond_broadcast(&pool->job_cond);
+	pthread_mutex_unlock(&pool->mutex);
+
+	for (int w = 0; w < pool->size - 1; ++w)
+		pthread_join(pool->workers[w].thread, NULL);
+
+	pthread_mutex_destroy(&pool->mutex);
+	pthread_cond_destroy(&pool->job_cond);
+	pthread_cond_destroy(&pool->done_cond);
+
+	SAFE_FREE(pool->workers);
+	pool->size = 0;
+}
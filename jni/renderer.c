@@ -17,22 +17,171 @@
  * along with Refract. If not, see <http://www.gnu.org/licenses/>.
  */
 
+#include <assert.h>
+
 #include "inc/refract.h"
 
 static int g_last_renderer_id = 0;
 
+iterc_t refract_renderer_min_iters(renderer_t* renderer);
+uint32_t* refract_renderer_histogram(renderer_t* renderer, iterc_t min_iters, int buckets);
+static const uint32_t* refract_renderer_update_histogram(renderer_t* renderer, iterc_t min_iters, int buckets);
+iterc_t refract_renderer_histogram_autoscale(renderer_t* renderer, iterc_t min_iters, int buckets);
+uint32_t refract_renderer_histogram_total(renderer_t* renderer, int buckets);
+
+bool refract_params_equal(params_t* p1, params_t* p2);
+static bool refract_renderer_reserve_z_cache(renderer_t* renderer, precision_t precision);
+static bool refract_renderer_reserve_band_histograms(renderer_t* renderer);
+static bool refract_renderer_pan(renderer_t* renderer, params_t* params);
+static bool refract_renderer_reproject(renderer_t* renderer, params_t* params);
+static void refract_renderer_iterate_pending(renderer_t* renderer, params_t* params, iterc_t iters, int generation);
+
 /**
- * Iteration functions from iterate.h
+ * Bits of precision to keep spare beyond those needed to tell pixels apart, so that rounding errors
+ * amplified by iterating don't show up as blocky pixels
  */
-void refract_renderer_iterate_m2(renderer_t* renderer, complex_t offset, float_t zoom, iterc_t max_iters, bool use_cache);
-void refract_renderer_iterate_m3(renderer_t* renderer, complex_t offset, float_t zoom, iterc_t max_iters, bool use_cache);
-void refract_renderer_iterate_m4(renderer_t* renderer, complex_t offset, float_t zoom, iterc_t max_iters, bool use_cache);
+#define PRECISION_GUARD_BITS 10
 
-uint32_t* refract_renderer_histogram(renderer_t* renderer);
-void refract_renderer_histogram_autoscale(renderer_t* renderer, iterc_t* min, iterc_t* max);
-uint32_t refract_renderer_histogram_total(renderer_t* renderer);
+/**
+ * Bits of mantissa of each precision which iterates pixels directly
+ */
+static const int g_precision_bits[] = { 24, 53, 106 };
 
-bool refract_params_equal(params_t* p1, params_t* p2);
+/**
+ * Bytes of z cache stored per pixel for each precision. Float and double also store each pixel's
+ * periodicity check point. Perturbation stores the delta from the reference orbit and the pixel's
+ * position in the orbit.
+ */
+static const size_t g_z_cache_pixel_size[] = {
+	4 * sizeof (float_t),
+	4 * sizeof (double),
+	4 * sizeof (double),
+	2 * sizeof (double) + sizeof (uint32_t)
+};
+
+/**
+ * Number of equally sized planes in the z cache for each precision. Perturbation has none as its
+ * deltas are relative to the reference orbit and so can't be moved to another offset.
+ */
+static const int g_z_cache_planes[] = { 4, 4, 4, 0 };
+
+/**
+ * Bit masks of the z cache planes which hold real and imaginary parts for each precision
+ */
+static const int g_z_cache_real_planes[] = { 0x5, 0x5, 0x3, 0 };
+static const int g_z_cache_imag_planes[] = { 0xA, 0xA, 0xC, 0 };
+
+/**
+ * Fraction of a pixel by which a previous result can miss a new pixel and still be reused
+ */
+#define REUSE_TOLERANCE 1e-3
+
+/**
+ * Least fraction of a new view which has to lie inside the previous one for it to be reprojected
+ */
+#define REPROJECT_MIN_OVERLAP 0.25
+
+/**
+ * Spacing in pixels of the samples computed by the first pass of a fresh render. Each following
+ * pass halves it until every pixel has been computed.
+ */
+#define PROGRESSIVE_STEP 8
+
+/**
+ * Spacing in pixels of the grid of rectangles which a subdivided render starts from
+ */
+#define SUBDIVIDE_TILE 64
+
+/**
+ * Rectangles with insides narrower than this are iterated pixel by pixel rather than split
+ */
+#define SUBDIVIDE_MIN 8
+
+/**
+ * Max number of rectangles of a subdivided render. Rectangles from splits span at least 4 pixels
+ * each way, and there has to be room for those being split alongside the new ones.
+ */
+#define SUBDIVIDE_RECTS_MAX(w, h) (2 * ((w) * (h) / 16 + ((w) / SUBDIVIDE_TILE + 2) * ((h) / SUBDIVIDE_TILE + 2)))
+
+/**
+ * States of a rectangle's border
+ */
+typedef enum {
+	BORDER_MIXED,		// different counts, so the rectangle must be split
+	BORDER_UNIFORM,		// the same count which escaped or is in the set, so the inside can be filled
+	BORDER_UNRESOLVED	// still being iterated or in the set, so nothing can be decided yet
+
+} border_t;
+
+/**
+ * Flag marking pending pixels in the copy of the previous iteration buffer used by a reprojection
+ */
+#define ITERC_PENDING 0x80000000u
+
+/**
+ * Bits of a pixel's iteration count above the render's minimum which the histogram and palette index
+ * table keep exactly. Beyond that each bucket spans twice as many counts as those of the previous power
+ * of two, so that the number of buckets stays bounded however deep a render goes.
+ */
+#define HISTOGRAM_EXACT_BITS 12
+
+/**
+ * Number of buckets needed to cover every iteration count
+ */
+#define HISTOGRAM_BUCKETS ((ITERC_BITS - HISTOGRAM_EXACT_BITS + 2) << (HISTOGRAM_EXACT_BITS - 1))
+
+/**
+ * Gets the histogram bucket of an iteration count given as its offset from the lowest count
+ */
+static inline int refract_histogram_bucket(iterc_t offset) {
+	if (offset < (1u << HISTOGRAM_EXACT_BITS))
+		return offset;
+
+	// Keep the top bits of the offset, and count how many were dropped
+	const int shift = 32 - __builtin_clz(offset) - HISTOGRAM_EXACT_BITS;
+	return ((shift + 1) << (HISTOGRAM_EXACT_BITS - 1)) + (offset >> shift) - (1 << (HISTOGRAM_EXACT_BITS - 1));
+}
+
+/**
+ * Gets the lowest offset from the lowest count which falls in the given histogram bucket
+ */
+static inline iterc_t refract_histogram_bucket_start(int bucket) {
+	if (bucket < (1 << HISTOGRAM_EXACT_BITS))
+		return bucket;
+
+	const int shift = (bucket >> (HISTOGRAM_EXACT_BITS - 1)) - 1;
+	return (iterc_t)((bucket & ((1 << (HISTOGRAM_EXACT_BITS - 1)) - 1)) | (1 << (HISTOGRAM_EXACT_BITS - 1))) << shift;
+}
+
+/**
+ * Order in which every eighth row is visited, so that each batch of pending pixels is spread over
+ * the whole screen
+ */
+static const int g_interlaced_rows[] = { 0, 4, 2, 6, 1, 5, 3, 7 };
+
+/**
+ * Arguments of an iteration job shared by all bands
+ */
+typedef struct {
+	renderer_t* renderer;
+	params_t* params;
+	iterc_t max_iters;
+	iterc_t start_iters;
+	const int* pixels;
+	int count;
+
+} iterate_job_t;
+
+/**
+ * Arguments of a histogram job shared by all bands
+ */
+typedef struct {
+	renderer_t* renderer;
+	iterc_t min_iters;
+	int buckets;
+	iterc_t band_min_iters[THREADS_MAX];
+
+} histogram_job_t;
 
 /**
  * Allocates a renderer
@@ -42,18 +191,37 @@ bool refract_renderer_init(renderer_t* renderer, int width, int height) {
 	memset(renderer, 0, sizeof (renderer_t));
 	renderer->id = ++g_last_renderer_id;
 
+	renderer->iters_limit = ITERS_LIMIT_DEFAULT;
+
 	// Allocate palette index buffer
-	if ((renderer->palette_indexes = malloc(ITERC_MAX * sizeof (int))) == NULL)
+	if ((renderer->palette_indexes = malloc(HISTOGRAM_BUCKETS * sizeof (int))) == NULL)
 		return false;
 
 	// Allocate iters histogram buffer
-	if ((renderer->iter_histogram = malloc((ITERC_MAX + 1) * sizeof (int))) == NULL)
+	if ((renderer->iter_histogram = malloc(HISTOGRAM_BUCKETS * sizeof (uint32_t))) == NULL)
+		return false;
+
+	// Allocate buffer of the palette indexes used by the last render
+	if ((renderer->color_indexes = malloc(HISTOGRAM_BUCKETS * sizeof (int))) == NULL)
 		return false;
 
 	// Allocate screen buffers
 	if (!refract_renderer_resize(renderer, width, height))
 		return false;
 
+	// Use SIMD kernels if this CPU supports them
+	renderer->kernels[PRECISION_FLOAT] = refract_simd_available() ? refract_simd_kernels : refract_scalar_kernels;
+	renderer->kernels[PRECISION_DOUBLE] = refract_double_kernels;
+	renderer->kernels[PRECISION_DOUBLE_DOUBLE] = refract_dd_kernels;
+	renderer->kernels[PRECISION_PERTURBATION] = refract_perturb_kernels;
+
+	// Start worker threads, one per core by default
+	if (!refract_pool_init(&renderer->pool, 0))
+		return false;
+
+	if (!refract_renderer_reserve_band_histograms(renderer))
+		return false;
+
 	return true;
 }
 
@@ -62,18 +230,40 @@ bool refract_renderer_init(renderer_t* renderer, int width, int height) {
  */
 bool refract_renderer_resize(renderer_t* renderer, int width, int height) {
 	// Free screen buffers
-	SAFE_FREE(renderer->iter_buffer);
-	SAFE_FREE(renderer->z_cache);
+	SAFE_ALIGNED_FREE(renderer->iter_buffer);
+	SAFE_FREE(renderer->active_pixels);
+	SAFE_FREE(renderer->pending_pixels);
+	SAFE_FREE(renderer->pending_estimates);
+	SAFE_FREE(renderer->rects);
+	SAFE_ALIGNED_FREE(renderer->z_cache);
+	SAFE_FREE(renderer->color_buffer);
+	SAFE_FREE(renderer->dirty_pixels);
+	renderer->z_cache_size = 0;
 
 	renderer->width = width;
 	renderer->height = height;
 
-	// Allocate buffers
-	renderer->iter_buffer = malloc(sizeof (iterc_t) * width * height);
-	renderer->z_cache = malloc(sizeof (complex_t) * width * height);
+	// Contents of new buffers can't be reused
+	renderer->cache_max_iters = 0;
+	renderer->active_count = 0;
+	renderer->pending_first = renderer->pending_count = 0;
+	renderer->rect_count = 0;
+	renderer->mirror_x = renderer->mirror_y = 0;
+	refract_renderer_invalidate(renderer);
+	renderer->full_copies = 2;
+
+	// Allocate buffers, with z cache initially sized for single precision
+	renderer->iter_buffer = refract_aligned_alloc(sizeof (iterc_t) * width * height);
+	renderer->active_pixels = malloc(sizeof (int) * width * height);
+	renderer->pending_pixels = malloc(sizeof (int) * width * height);
+	renderer->pending_estimates = malloc(sizeof (iterc_t) * width * height);
+	renderer->rects = malloc(sizeof (rect_t) * SUBDIVIDE_RECTS_MAX(width, height));
+	renderer->color_buffer = malloc(sizeof (color_t) * width * height);
+	renderer->dirty_pixels = malloc(sizeof (int) * width * height);
 
 	// Check buffers were allocated
-	if (!renderer->iter_buffer || !renderer->z_cache) {
+	if (!renderer->iter_buffer || !renderer->active_pixels || !renderer->pending_pixels || !renderer->pending_estimates || !renderer->rects
+			|| !renderer->color_buffer || !renderer->dirty_pixels || !refract_renderer_reserve_z_cache(renderer, PRECISION_FLOAT)) {
 		refract_renderer_free(renderer);
 		return false;
 	}
@@ -81,31 +271,585 @@ bool refract_renderer_resize(renderer_t* renderer, int width, int height) {
 	return true;
 }
 
+/**
+ * Starts a fresh render coarse to fine. Only every PROGRESSIVE_STEP'th pixel in each direction is
+ * active at first. The rest are pending in batches which each halve the spacing between samples,
+ * so every pixel is still only computed once.
+ */
+static void refract_renderer_activate_progressive(renderer_t* renderer) {
+	const int width = renderer->width;
+	const int height = renderer->height;
+	int* restrict active_pixels = renderer->active_pixels;
+	int* restrict pending_pixels = renderer->pending_pixels;
+	int active_count = 0, pending_count = 0, batches = 0;
+
+	for (int step = PROGRESSIVE_STEP; step >= 1; step /= 2) {
+		for (int y = 0; y < height; y += step) {
+			for (int x = 0; x < width; x += step) {
+				// Skip samples which belong to a coarser pass
+				if (step < PROGRESSIVE_STEP && (x % (step * 2)) == 0 && (y % (step * 2)) == 0)
+					continue;
+
+				if (step == PROGRESSIVE_STEP)
+					active_pixels[active_count++] = y * width + x;
+				else
+					pending_pixels[pending_count++] = y * width + x;
+			}
+		}
+
+		if (step < PROGRESSIVE_STEP)
+			renderer->pending_ends[batches++] = pending_count;
+	}
+
+	renderer->active_count = active_count;
+	renderer->pending_first = 0;
+	renderer->pending_count = pending_count;
+	renderer->pending_batch = 0;
+	renderer->pending_block = PROGRESSIVE_STEP;
+	renderer->pending_iters = 0;
+	renderer->rect_count = 0;
+	renderer->mirror_x = renderer->mirror_y = 0;
+}
+
+/**
+ * Starts a fresh render by subdivision. Only the lines of a grid are active at first, and the
+ * rectangles between them are resolved as their borders are iterated. Until then their insides are
+ * shown as being in the set.
+ */
+static void refract_renderer_activate_subdivided(renderer_t* renderer) {
+	const int width = renderer->width;
+	const int height = renderer->height;
+	int* restrict active_pixels = renderer->active_pixels;
+	iterc_t* restrict iter_buffer = renderer->iter_buffer;
+	int active_count = 0, rect_count = 0;
+
+	for (int y = 0, index = 0; y < height; ++y) {
+		for (int x = 0; x < width; ++x, ++index) {
+			if ((x % SUBDIVIDE_TILE) == 0 || (y % SUBDIVIDE_TILE) == 0 || x == width - 1 || y == height - 1)
+				active_pixels[active_count++] = index;
+			else
+				iter_buffer[index] = ITERC_SET;
+		}
+	}
+
+	for (int y = 0; y < height - 1; y += SUBDIVIDE_TILE) {
+		for (int x = 0; x < width - 1; x += SUBDIVIDE_TILE) {
+			rect_t rect = { x, y, MIN(x + SUBDIVIDE_TILE, width - 1), MIN(y + SUBDIVIDE_TILE, height - 1) };
+			renderer->rects[rect_count++] = rect;
+		}
+	}
+
+	renderer->active_count = active_count;
+	renderer->pending_first = renderer->pending_count = 0;
+	renderer->rect_count = rect_count;
+	renderer->fill_errors = 0;
+	renderer->mirror_x = renderer->mirror_y = 0;
+}
+
+/**
+ * Gives each pending pixel of a progressive render the value of the sample at the top left of its
+ * block, so that the coarse passes still fill the screen
+ */
+static void refract_renderer_fill_pending(renderer_t* renderer) {
+	const int width = renderer->width;
+	const int mask = ~(renderer->pending_block - 1);
+	const int* restrict pending_pixels = renderer->pending_pixels;
+	iterc_t* restrict iter_buffer = renderer->iter_buffer;
+
+	for (int i = renderer->pending_first; i < renderer->pending_count; ++i) {
+		int index = pending_pixels[i];
+		int x = index % width;
+		int y = index / width;
+		iter_buffer[index] = iter_buffer[(y & mask) * width + (x & mask)];
+	}
+}
+
+/**
+ * Gets the doubled pixel coordinate of an axis of symmetry from its doubled position, or zero if
+ * pixels on either side don't coincide or there are none to mirror
+ */
+static int refract_mirror_axis(double axis, int size) {
+	double nearest = floor(axis + 0.5);
+
+	if (fabs(axis - nearest) > REUSE_TOLERANCE || nearest <= 0 || nearest >= 2 * (size - 1))
+		return 0;
+
+	return (int)nearest;
+}
+
+/**
+ * Checks whether a pixel is copied from its mirror image rather than iterated
+ */
+static inline bool refract_mirrored(const renderer_t* renderer, int x, int y) {
+	return (renderer->mirror_x && 2 * x > renderer->mirror_x && x <= renderer->mirror_x)
+		|| (renderer->mirror_y && 2 * y > renderer->mirror_y && y <= renderer->mirror_y);
+}
+
+/**
+ * Gets the mirrored pixels which are copied from the given iterated pixel, returning how many
+ */
+static int refract_mirror_images(const renderer_t* renderer, int x, int y, int* images) {
+	const int mx = renderer->mirror_x ? renderer->mirror_x - x : -1;
+	const int my = renderer->mirror_y ? renderer->mirror_y - y : -1;
+	const bool has_x = mx > x && mx < renderer->width;
+	const bool has_y = my > y && my < renderer->height;
+	int count = 0;
+
+	if (has_x)
+		images[count++] = y * renderer->width + mx;
+	if (has_y)
+		images[count++] = my * renderer->width + x;
+	if (has_x && has_y)
+		images[count++] = my * renderer->width + mx;
+
+	return count;
+}
+
+/**
+ * Stops iterating pixels which mirror others about an axis of symmetry of the set, once every pixel
+ * of the render is active or resolved. Every Multibrot set is symmetric about the real axis, and those
+ * of odd degree are also symmetric about the imaginary axis. The other rotational symmetries don't map
+ * pixels onto pixels. Julia sets with real k are symmetric about the real axis, and those of even
+ * degree are also symmetric about the origin, which together give symmetry about the imaginary axis.
+ */
+static void refract_renderer_mirror_start(renderer_t* renderer) {
+	const params_t* params = &renderer->cache_params;
+	const double axis_x = renderer->width / 2 - (params->offset.re + params->offset_lo.re) * params->zoom;
+	const double axis_y = renderer->height / 2 + (params->offset.im + params->offset_lo.im) * params->zoom;
+
+	const func_t* func = &params->func;
+	const bool odd = (func->degree & 1) != 0;
+	const bool real_axis = !func->julia || func->k.im == 0;
+	const bool imag_axis = func->julia ? (real_axis && !odd) : odd;
+
+	renderer->mirror_x = imag_axis ? refract_mirror_axis(2 * axis_x, renderer->width) : 0;
+	renderer->mirror_y = real_axis ? refract_mirror_axis(2 * axis_y, renderer->height) : 0;
+
+	if (!renderer->mirror_x && !renderer->mirror_y)
+		return;
+
+	int* restrict active_pixels = renderer->active_pixels;
+	int count = 0;
+
+	for (int i = 0; i < renderer->active_count; ++i) {
+		int index = active_pixels[i];
+		if (!refract_mirrored(renderer, index % renderer->width, index / renderer->width))
+			active_pixels[count++] = index;
+	}
+
+	renderer->active_count = count;
+}
+
+/**
+ * Starts iterating mirrored pixels again, giving them the z values of their mirror images so that the render
+ * can be reused for a new view. Reflecting about the real axis negates the imaginary part of z, and
+ * reflecting about the imaginary axis negates the real part, except for Julia sets where it's the
+ * imaginary part again as z^d loses the sign change of the origin symmetry.
+ */
+static void refract_renderer_unmirror(renderer_t* renderer) {
+	const precision_t precision = renderer->cache_precision;
+	const int planes = g_z_cache_planes[precision];
+	const bool julia = renderer->cache_params.func.julia;
+
+	// Renders whose z values can't be moved are never reused
+	if ((!renderer->mirror_x && !renderer->mirror_y) || planes == 0)
+		return;
+
+	const int width = renderer->width;
+	const size_t value_size = g_z_cache_pixel_size[precision] / planes;
+	const int plane = Z_PLANE_SIZE(renderer);
+	char* z_cache = (char*)renderer->z_cache;
+	int* active_pixels = renderer->active_pixels;
+	iterc_t* iter_buffer = renderer->iter_buffer;
+	const int count = renderer->active_count;
+	int images[3];
+
+	for (int i = 0; i < count; ++i) {
+		const int index = active_pixels[i];
+		const int x = index % width;
+		const int y = index / width;
+		const int n = refract_mirror_images(renderer, x, y, images);
+
+		for (int m = 0; m < n; ++m) {
+			const int image = images[m];
+			int negated = 0;
+			if (image / width != y)
+				negated ^= g_z_cache_imag_planes[precision];
+			if (image % width != x)
+				negated ^= julia ? g_z_cache_imag_planes[precision] : g_z_cache_real_planes[precision];
+
+			for (int p = 0; p < planes; ++p) {
+				char* dst = z_cache + (p * plane + image) * value_size;
+				memcpy(dst, z_cache + (p * plane + index) * value_size, value_size);
+
+				if (negated & (1 << p)) {
+					if (value_size == sizeof (float_t))
+						*(float_t*)dst = -*(float_t*)dst;
+					else
+						*(double*)dst = -*(double*)dst;
+				}
+			}
+
+			iter_buffer[image] = iter_buffer[index];
+			active_pixels[renderer->active_count++] = image;
+		}
+	}
+
+	renderer->mirror_x = renderer->mirror_y = 0;
+}
+
+/**
+ * Removes pixels which escaped or were found to be in the set from the active pixel list, keeping
+ * the rest in order so that they stay spread between bands as before. Mirrored pixels are given
+ * the counts of the pixels they mirror. A valid histogram is kept up to date with those which escaped.
+ */
+static void refract_renderer_compact_active(renderer_t* renderer, iterc_t max_iters) {
+	const bool mirrored = renderer->mirror_x || renderer->mirror_y;
+	const bool counting = renderer->histogram_valid;
+	const iterc_t histogram_min_iters = renderer->histogram_min_iters;
+	int* restrict active_pixels = renderer->active_pixels;
+	iterc_t* restrict iter_buffer = renderer->iter_buffer;
+	uint32_t* restrict histo = renderer->iter_histogram;
+	int images[3];
+	int count = 0;
+
+	for (int i = 0; i < renderer->active_count; ++i) {
+		int index = active_pixels[i];
+		int n = 0;
+
+		if (mirrored) {
+			n = refract_mirror_images(renderer, index % renderer->width, index / renderer->width, images);
+			for (int m = 0; m < n; ++m)
+				iter_buffer[images[m]] = iter_buffer[index];
+		}
+
+		// Pixels which escape are added to the histogram along with their mirror images
+		if (iter_buffer[index] == max_iters)
+			active_pixels[count++] = index;
+		else if (counting && iter_buffer[index] < max_iters)
+			histo[refract_histogram_bucket(iter_buffer[index] - histogram_min_iters)] += 1 + n;
+	}
+
+	renderer->active_count = count;
+}
+
+/**
+ * Records that the active pixels and their mirror images are about to change, so that the next
+ * render only colors them again. If that's more pixels than the screen has, it colors every pixel.
+ */
+static void refract_renderer_mark_active_dirty(renderer_t* renderer) {
+	const bool mirrored = renderer->mirror_x || renderer->mirror_y;
+	const int* restrict active_pixels = renderer->active_pixels;
+	int* restrict dirty_pixels = renderer->dirty_pixels;
+	int dirty_count = renderer->dirty_count;
+	int images[3];
+
+	if (dirty_count == DIRTY_ALL)
+		return;
+
+	if (dirty_count + renderer->active_count * (mirrored ? 4 : 1) > renderer->width * renderer->height) {
+		renderer->dirty_count = DIRTY_ALL;
+		return;
+	}
+
+	for (int i = 0; i < renderer->active_count; ++i) {
+		int index = active_pixels[i];
+		dirty_pixels[dirty_count++] = index;
+
+		if (mirrored) {
+			int n = refract_mirror_images(renderer, index % renderer->width, index / renderer->width, images);
+			for (int m = 0; m < n; ++m)
+				dirty_pixels[dirty_count++] = images[m];
+		}
+	}
+
+	renderer->dirty_count = dirty_count;
+}
+
+/**
+ * Iterates one band of the renderer (called on each worker thread)
+ */
+static void refract_renderer_iterate_band(void* arg, int band, int bands) {
+	iterate_job_t* job = (iterate_job_t*)arg;
+	renderer_t* renderer = job->renderer;
+	params_t* params = job->params;
+
+	renderer->kernels[renderer->cache_precision][FUNC_INDEX(params->func)](renderer, params, job->max_iters, job->start_iters, job->pixels, job->count, band, bands);
+}
+
+/**
+ * Checks the border of a rectangle, giving the count shared by the whole border if there is one
+ */
+static border_t refract_rect_border(const iterc_t* iters, int width, const rect_t* rect, iterc_t max_iters, iterc_t* value) {
+	const iterc_t first = iters[rect->y0 * width + rect->x0];
+	bool uniform = true, unresolved = true;
+
+	for (int x = rect->x0; x <= rect->x1 && (uniform || unresolved); ++x) {
+		iterc_t top = iters[rect->y0 * width + x];
+		iterc_t bottom = iters[rect->y1 * width + x];
+		uniform = uniform && top == first && bottom == first;
+		unresolved = unresolved && top >= max_iters && bottom >= max_iters;
+	}
+	for (int y = rect->y0 + 1; y < rect->y1 && (uniform || unresolved); ++y) {
+		iterc_t left = iters[y * width + rect->x0];
+		iterc_t right = iters[y * width + rect->x1];
+		uniform = uniform && left == first && right == first;
+		unresolved = unresolved && left >= max_iters && right >= max_iters;
+	}
+
+	*value = first;
+
+	// A border which is all still being iterated might yet escape at different counts
+	if (uniform && first != max_iters)
+		return BORDER_UNIFORM;
+
+	return unresolved ? BORDER_UNRESOLVED : BORDER_MIXED;
+}
+
+/**
+ * Grows a rectangle to include the given pixel
+ */
+static inline void refract_rect_include(rect_t* rect, int x, int y) {
+	rect->x0 = MIN(rect->x0, x);
+	rect->y0 = MIN(rect->y0, y);
+	rect->x1 = MAX(rect->x1, x);
+	rect->y1 = MAX(rect->y1, y);
+}
+
+/**
+ * Fills the inside of a rectangle with the given count
+ */
+static void refract_rect_fill(iterc_t* iters, int width, const rect_t* rect, iterc_t value) {
+	for (int y = rect->y0 + 1; y < rect->y1; ++y) {
+		for (int x = rect->x0 + 1; x < rect->x1; ++x)
+			iters[y * width + x] = value;
+	}
+}
+
+/**
+ * Iterates the inside of a rectangle on the calling thread and counts the pixels which don't match
+ * the count it would be filled with, before filling it anyway. Pixels which are still being
+ * iterated only count if the rectangle is being filled with a count that escaped.
+ */
+static int refract_renderer_check_fill(renderer_t* renderer, params_t* params, iterc_t max_iters, const rect_t* rect, iterc_t value) {
+	const int width = renderer->width;
+	int* pixels = renderer->active_pixels + renderer->active_count;
+	int count = 0, errors = 0;
+
+	// Space after the active pixels is free as these pixels can't be active
+	for (int y = rect->y0 + 1; y < rect->y1; ++y) {
+		for (int x = rect->x0 + 1; x < rect->x1; ++x)
+			pixels[count++] = y * width + x;
+	}
+
+	renderer->kernels[renderer->cache_precision][FUNC_INDEX(params->func)](renderer, params, max_iters, 0, pixels, count, 0, 1);
+
+	for (int i = 0; i < count; ++i) {
+		iterc_t iters = renderer->iter_buffer[pixels[i]];
+		if (iters != value && (value != ITERC_SET || iters < max_iters))
+			++errors;
+	}
+
+	refract_rect_fill(renderer->iter_buffer, width, rect, value);
+	return errors;
+}
+
+/**
+ * Resolves the rectangles of a subdivided render as far as the given number of iterations allows.
+ * Those whose borders agree are filled, and the rest are split in four by iterating the lines
+ * between the quarters from scratch. Those whose borders are unresolved are left for later frames.
+ */
+static void refract_renderer_subdivide(renderer_t* renderer, params_t* params, iterc_t max_iters) {
+	const int width = renderer->width;
+	const bool checked = (renderer->strategy == STRATEGY_SUBDIVIDE_CHECKED);
+	rect_t* rects = renderer->rects;
+	iterc_t* restrict iter_buffer = renderer->iter_buffer;
+	int* restrict active_pixels = renderer->active_pixels;
+	int kept = 0, first = 0, count = renderer->rect_count;
+	bool changed = false;
+
+	// Each round checks the rectangles made by the previous one
+	while (first < count) {
+		const int end = count;
+		const int added = renderer->active_count;
+
+		for (int r = first; r < end; ++r) {
+			const rect_t rect = rects[r];
+			iterc_t value;
+
+			switch (refract_rect_border(iter_buffer, width, &rect, max_iters, &value)) {
+			case BORDER_UNRESOLVED:
+				rects[kept++] = rect;
+				break;
+			case BORDER_UNIFORM:
+				changed = true;
+				if (checked)
+					renderer->fill_errors += refract_renderer_check_fill(renderer, params, max_iters, &rect, value);
+				else if (value != ITERC_SET) // Insides are already shown as in the set
+					refract_rect_fill(iter_buffer, width, &rect, value);
+				break;
+			case BORDER_MIXED:
+				changed = true;
+				if (rect.x1 - rect.x0 - 1 < SUBDIVIDE_MIN || rect.y1 - rect.y0 - 1 < SUBDIVIDE_MIN) {
+					for (int y = rect.y0 + 1; y < rect.y1; ++y) {
+						for (int x = rect.x0 + 1; x < rect.x1; ++x)
+							active_pixels[renderer->active_count++] = y * width + x;
+					}
+				}
+				else {
+					const int xm = (rect.x0 + rect.x1) / 2;
+					const int ym = (rect.y0 + rect.y1) / 2;
+
+					for (int y = rect.y0 + 1; y < rect.y1; ++y)
+						active_pixels[renderer->active_count++] = y * width + xm;
+					for (int x = rect.x0 + 1; x < rect.x1; ++x) {
+						if (x != xm)
+							active_pixels[renderer->active_count++] = ym * width + x;
+					}
+
+					rect_t quarters[] = {
+						{ rect.x0, rect.y0, xm, ym }, { xm, rect.y0, rect.x1, ym },
+						{ rect.x0, ym, xm, rect.y1 }, { xm, ym, rect.x1, rect.y1 }
+					};
+					memcpy(rects + count, quarters, sizeof (quarters));
+					count += 4;
+				}
+				break;
+			}
+		}
+
+		// Move the new rectangles down to follow those left for later frames
+		memmove(rects + kept, rects + end, sizeof (rect_t) * (count - end));
+		count = kept + (count - end);
+		first = kept;
+
+		// Iterate the new pixels, keeping only those which are still unresolved
+		const int new_count = renderer->active_count - added;
+		if (new_count > 0) {
+			iterate_job_t job = { renderer, params, max_iters, 0, active_pixels + added, new_count };
+			refract_pool_run(&renderer->pool, refract_renderer_iterate_band, &job);
+
+			int active_count = added;
+			for (int i = added; i < added + new_count; ++i) {
+				if (iter_buffer[active_pixels[i]] == max_iters)
+					active_pixels[active_count++] = active_pixels[i];
+			}
+			renderer->active_count = active_count;
+		}
+	}
+
+	renderer->rect_count = kept;
+
+	// Filled rectangles and new lines can be anywhere
+	if (changed)
+		refract_renderer_invalidate(renderer);
+}
+
+/**
+ * Iterates the active pixels from the cached iterations up to the given max iterations, in slices
+ * which each leave the cache complete. Checks between slices whether the renderer has been cancelled
+ * since the given generation, and if so stops there.
+ * @return the iterations reached
+ */
+static iterc_t refract_renderer_iterate_slices(renderer_t* renderer, params_t* params, iterc_t max_iters, int generation) {
+	const iterc_t iters = max_iters - renderer->cache_max_iters;
+	const iterc_t slice = MAX((iters + ITERATE_SLICES - 1) / ITERATE_SLICES, ITERATE_SLICE_MIN);
+
+	// Later slices only iterate pixels which the first one did
+	if (renderer->active_count > 0 && renderer->cache_max_iters < max_iters)
+		refract_renderer_mark_active_dirty(renderer);
+
+	while (renderer->active_count > 0 && renderer->cache_max_iters < max_iters) {
+		iterc_t slice_max_iters = renderer->cache_max_iters + MIN(slice, max_iters - renderer->cache_max_iters);
+
+		iterate_job_t job = { renderer, params, slice_max_iters, renderer->cache_max_iters, renderer->active_pixels, renderer->active_count };
+		refract_pool_run(&renderer->pool, refract_renderer_iterate_band, &job);
+		refract_renderer_compact_active(renderer, slice_max_iters);
+		renderer->cache_max_iters = slice_max_iters;
+
+		if (__atomic_load_n(&renderer->cancel_generation, __ATOMIC_ACQUIRE) != generation)
+			return slice_max_iters;
+	}
+	return max_iters;
+}
+
 /**
  * Iterates the renderer by the given number of iterations
  */
 iterc_t refract_renderer_iterate(renderer_t* renderer, params_t* params, iterc_t iters) {
+	const int generation = __atomic_load_n(&renderer->cancel_generation, __ATOMIC_ACQUIRE);
 
 	// Has the the renderer been iterated previously with these parameters?
 	bool use_cache = refract_params_equal(&renderer->cache_params, params) && (renderer->cache_max_iters > 0);
 
+	// A pan by whole pixels keeps the results still on screen, and a zoom keeps those which coincide
+	// with new pixels. Later frames carry on refining them.
+	if (!use_cache) {
+		refract_renderer_invalidate(renderer);
+		refract_renderer_unmirror(renderer);
+
+		if (refract_renderer_pan(renderer, params) || refract_renderer_reproject(renderer, params))
+			return renderer->cache_max_iters;
+	}
+
+	// Pending pixels are brought up to date before iterating any deeper
+	if (use_cache && renderer->pending_first < renderer->pending_count) {
+		refract_renderer_iterate_pending(renderer, params, iters, generation);
+		return renderer->cache_max_iters;
+	}
+
 	// Increment or reset max-iters depending on whether we'll be using the cache
-	iterc_t max_iters = use_cache ? (renderer->cache_max_iters + iters) : iters;
+	uint64_t max_iters_64 = (uint64_t)(use_cache ? renderer->cache_max_iters : 0) + iters;
+	iterc_t max_iters = (iterc_t)max_iters_64;
 
-	// Only iterate if we haven't gone beyond max iters
-	if (max_iters <= ITERC_MAX) {
-		switch (params->func) {
-		case MANDELBROT:
-			refract_renderer_iterate_m2(renderer, params->offset, params->zoom, max_iters, use_cache);
-			break;
-		case MANDELBROT_3:
-			refract_renderer_iterate_m3(renderer, params->offset, params->zoom, max_iters, use_cache);
-			break;
-		case MANDELBROT_4:
-			refract_renderer_iterate_m4(renderer, params->offset, params->zoom, max_iters, use_cache);
-			break;
+	// Only iterate if we haven't gone beyond the limit
+	if (max_iters_64 <= renderer->iters_limit) {
+		if (!use_cache) {
+			// Previous results are about to be overwritten
+			renderer->cache_max_iters = 0;
+
+			// Pick the cheapest precision that can resolve these params
+			precision_t precision = refract_params_precision(params);
+
+			// Kernel tables have no entries for functions their precision is never picked for
+			assert(renderer->kernels[precision][FUNC_INDEX(params->func)] != NULL);
+
+			if (!refract_renderer_reserve_z_cache(renderer, precision))
+				return renderer->cache_max_iters;
+
+			renderer->cache_precision = precision;
+
+			// Every pixel needs iterating from scratch, either coarsest first or by subdivision
+			if (renderer->strategy == STRATEGY_PIXELS)
+				refract_renderer_activate_progressive(renderer);
+			else
+				refract_renderer_activate_subdivided(renderer);
+		}
+
+		// Perturbation needs the reference orbit to be at least as long as any pixel's
+		if (renderer->cache_precision == PRECISION_PERTURBATION) {
+			if (!refract_orbit_update(&renderer->orbit, params, max_iters + 2, !use_cache))
+				return renderer->cache_max_iters;
+		}
+
+		// Split the frame between the worker threads, unless every pixel is already resolved. Refining
+		// frames are split into slices so that they can stop early if they're cancelled.
+		if (use_cache)
+			max_iters = refract_renderer_iterate_slices(renderer, params, max_iters, generation);
+		else if (renderer->active_count > 0) {
+			iterate_job_t job = { renderer, params, max_iters, 0, renderer->active_pixels, renderer->active_count };
+			refract_pool_run(&renderer->pool, refract_renderer_iterate_band, &job);
+			refract_renderer_compact_active(renderer, max_iters);
 		}
 
+		// Pixels waiting for finer passes show the coarse samples meanwhile
+		if (!use_cache)
+			refract_renderer_fill_pending(renderer);
+
+		// Borders may have resolved enough to fill or split more rectangles
+		if (renderer->rect_count > 0)
+			refract_renderer_subdivide(renderer, params, max_iters);
+
 		// Update cache status
 		renderer->cache_max_iters = max_iters;
 		renderer->cache_params = *params;
@@ -115,7 +859,364 @@ iterc_t refract_renderer_iterate(renderer_t* renderer, params_t* params, iterc_t
 }
 
 /**
- * Renders a renderer to the given pixel buffer
+ * Shifts a plane of values so that the value at (x + dx, y + dy) moves to (x, y). Values which
+ * would come from outside the plane are left as they were.
+ */
+static void refract_shift_plane(void* plane, size_t size, int width, int height, int dx, int dy) {
+	char* rows = (char*)plane;
+	const size_t row_size = size * width;
+	const size_t copy_size = size * (width - abs(dx));
+	const size_t dst_offset = size * MAX(0, -dx);
+	const size_t src_offset = size * MAX(0, dx);
+
+	// Work through rows in the direction that never overwrites a row before it has been copied
+	if (dy >= 0) {
+		for (int y = 0; y < height - dy; ++y)
+			memmove(rows + y * row_size + dst_offset, rows + (y + dy) * row_size + src_offset, copy_size);
+	}
+	else {
+		for (int y = height - 1; y >= -dy; --y)
+			memmove(rows + y * row_size + dst_offset, rows + (y + dy) * row_size + src_offset, copy_size);
+	}
+}
+
+/**
+ * Reuses the previous results for params which only pan the view by a whole number of pixels. The
+ * buffers are shifted to match, and only the newly exposed pixels are iterated, up to the same
+ * number of iterations as the rest.
+ */
+static bool refract_renderer_pan(renderer_t* renderer, params_t* params) {
+	const params_t* cache_params = &renderer->cache_params;
+	const precision_t precision = renderer->cache_precision;
+	const int planes = g_z_cache_planes[precision];
+
+	// Pending pixels and unresolved rectangles are left to a reprojection which can keep track of them
+	if (renderer->cache_max_iters == 0 || planes == 0 || renderer->pending_first < renderer->pending_count || renderer->rect_count > 0)
+		return false;
+	if (!refract_func_equal(&params->func, &cache_params->func) || params->zoom != cache_params->zoom || params->exact != cache_params->exact)
+		return false;
+	if (refract_params_precision(params) != precision)
+		return false;
+
+	// Pixels move in the opposite direction to the offset, and y increases downwards
+	double shift_x = ((params->offset.re - cache_params->offset.re) + (params->offset_lo.re - cache_params->offset_lo.re)) * params->zoom;
+	double shift_y = ((cache_params->offset.im - params->offset.im) + (cache_params->offset_lo.im - params->offset_lo.im)) * params->zoom;
+	double dx = round(shift_x);
+	double dy = round(shift_y);
+
+	if (fabs(shift_x - dx) > REUSE_TOLERANCE || fabs(shift_y - dy) > REUSE_TOLERANCE)
+		return false;
+	if (fabs(dx) >= renderer->width || fabs(dy) >= renderer->height)
+		return false;
+
+	const int width = renderer->width;
+	const int height = renderer->height;
+	const int sx = (int)dx;
+	const int sy = (int)dy;
+
+	// Move iteration counts and every plane of the z cache
+	refract_shift_plane(renderer->iter_buffer, sizeof (iterc_t), width, height, sx, sy);
+
+	const size_t value_size = g_z_cache_pixel_size[precision] / planes;
+	for (int p = 0; p < planes; ++p)
+		refract_shift_plane((char*)renderer->z_cache + p * value_size * Z_PLANE_SIZE(renderer), value_size, width, height, sx, sy);
+
+	// Move active pixels which are still on screen
+	int* restrict active_pixels = renderer->active_pixels;
+	int count = 0;
+
+	for (int i = 0; i < renderer->active_count; ++i) {
+		int x = active_pixels[i] % width - sx;
+		int y = active_pixels[i] / width - sy;
+		if (x >= 0 && x < width && y >= 0 && y < height)
+			active_pixels[count++] = y * width + x;
+	}
+
+	// Follow them with the newly exposed pixels
+	const int retained = count;
+
+	for (int y = 0, index = 0; y < height; ++y) {
+		bool exposed_row = (y + sy < 0 || y + sy >= height);
+
+		for (int x = 0; x < width; ++x, ++index) {
+			if (exposed_row || x + sx < 0 || x + sx >= width)
+				active_pixels[count++] = index;
+		}
+	}
+
+	// Bring the exposed pixels up to the same number of iterations as the rest
+	iterate_job_t job = { renderer, params, renderer->cache_max_iters, 0, active_pixels + retained, count - retained };
+
+	if (count > retained)
+		refract_pool_run(&renderer->pool, refract_renderer_iterate_band, &job);
+
+	renderer->active_count = count;
+	refract_renderer_compact_active(renderer, renderer->cache_max_iters);
+	renderer->cache_params = *params;
+	return true;
+}
+
+/**
+ * Finds the previous pixel which coincides with a new one, or returns -1 if there isn't one. The
+ * new pixel's position in the previous render is also returned.
+ */
+static inline int refract_reproject_source(int x, int y, int width, int height, double ratio, double origin_x, double origin_y, double* px, double* py) {
+	*px = x * ratio + origin_x;
+	*py = y * ratio + origin_y;
+
+	double sx = round(*px);
+	double sy = round(*py);
+
+	if (fabs(*px - sx) > REUSE_TOLERANCE || fabs(*py - sy) > REUSE_TOLERANCE)
+		return -1;
+	if (sx < 0 || sx >= width || sy < 0 || sy >= height)
+		return -1;
+
+	return (int)sy * width + (int)sx;
+}
+
+/**
+ * Estimates the iteration count at a position in the previous render by interpolating between the
+ * four pixels around it. Where any of those hadn't escaped, the nearest one is used instead.
+ */
+static iterc_t refract_reproject_estimate(const iterc_t* iters, int width, int height, iterc_t max_iters, double px, double py) {
+	px = MIN(MAX(px, 0), width - 1);
+	py = MIN(MAX(py, 0), height - 1);
+
+	int x0 = (int)px, y0 = (int)py;
+	int x1 = MIN(x0 + 1, width - 1), y1 = MIN(y0 + 1, height - 1);
+	double fx = px - x0, fy = py - y0;
+
+	iterc_t i00 = iters[y0 * width + x0] & ~ITERC_PENDING;
+	iterc_t i10 = iters[y0 * width + x1] & ~ITERC_PENDING;
+	iterc_t i01 = iters[y1 * width + x0] & ~ITERC_PENDING;
+	iterc_t i11 = iters[y1 * width + x1] & ~ITERC_PENDING;
+
+	if (i00 >= max_iters || i10 >= max_iters || i01 >= max_iters || i11 >= max_iters) {
+		int nx = (fx < 0.5) ? x0 : x1;
+		int ny = (fy < 0.5) ? y0 : y1;
+		return iters[ny * width + nx] & ~ITERC_PENDING;
+	}
+
+	double top = i00 + (i10 - i00) * fx;
+	double bottom = i01 + (i11 - i01) * fx;
+	return (iterc_t)(top + (bottom - top) * fy + 0.5);
+}
+
+/**
+ * Reuses the previous results for params which zoom the view. New pixels which coincide with
+ * previous ones take over their results, and the rest are given provisional iteration counts
+ * interpolated from the previous render. Those are then pending and get iterated from scratch over
+ * the following frames.
+ */
+static bool refract_renderer_reproject(renderer_t* renderer, params_t* params) {
+	const params_t* cache_params = &renderer->cache_params;
+	const precision_t precision = renderer->cache_precision;
+	const int planes = g_z_cache_planes[precision];
+	const iterc_t cache_max_iters = renderer->cache_max_iters;
+
+	if (cache_max_iters == 0 || planes == 0)
+		return false;
+	if (!refract_func_equal(&params->func, &cache_params->func) || params->exact != cache_params->exact)
+		return false;
+	if (refract_params_precision(params) != precision)
+		return false;
+
+	const int width = renderer->width;
+	const int height = renderer->height;
+	const int half_cx = width / 2;
+	const int half_cy = height / 2;
+
+	// New pixel (x, y) lies at (x * ratio + origin_x, y * ratio + origin_y) in the previous render
+	const double ratio = cache_params->zoom / params->zoom;
+	const double shift_x = ((params->offset.re - cache_params->offset.re) + (params->offset_lo.re - cache_params->offset_lo.re)) * cache_params->zoom;
+	const double shift_y = ((cache_params->offset.im - params->offset.im) + (cache_params->offset_lo.im - params->offset_lo.im)) * cache_params->zoom;
+	const double origin_x = half_cx - half_cx * ratio + shift_x;
+	const double origin_y = half_cy - half_cy * ratio + shift_y;
+
+	// Not worth it unless enough of the new view was already on screen
+	double overlap_x = MAX(0, MIN(origin_x + width * ratio, width) - MAX(origin_x, 0)) / (width * ratio);
+	double overlap_y = MAX(0, MIN(origin_y + height * ratio, height) - MAX(origin_y, 0)) / (height * ratio);
+	if (overlap_x * overlap_y < REPROJECT_MIN_OVERLAP)
+		return false;
+
+	// Take a copy of the previous iteration counts, marking those which were only provisional
+	const size_t pixel_size = g_z_cache_pixel_size[precision];
+	const size_t value_size = pixel_size / planes;
+	const int plane = Z_PLANE_SIZE(renderer);
+	iterc_t* old_iters = malloc(sizeof (iterc_t) * width * height);
+	char* old_z = malloc(pixel_size * MAX(renderer->active_count, 1));
+
+	if (!old_iters || !old_z) {
+		SAFE_FREE(old_iters);
+		SAFE_FREE(old_z);
+		return false;
+	}
+
+	memcpy(old_iters, renderer->iter_buffer, sizeof (iterc_t) * width * height);
+
+	for (int i = renderer->pending_first; i < renderer->pending_count; ++i)
+		old_iters[renderer->pending_pixels[i]] |= ITERC_PENDING;
+
+	// Insides of unresolved rectangles haven't been iterated either
+	for (int r = 0; r < renderer->rect_count; ++r) {
+		const rect_t* rect = &renderer->rects[r];
+		for (int y = rect->y0 + 1; y < rect->y1; ++y) {
+			for (int x = rect->x0 + 1; x < rect->x1; ++x)
+				old_iters[y * width + x] |= ITERC_PENDING;
+		}
+	}
+
+	char* z_cache = (char*)renderer->z_cache;
+	double px, py;
+	int carried = 0;
+
+	// Copy out the z values of still active pixels which will be carried over, as they may move
+	// onto each other. Rows are visited in the same order as below so the copies line up.
+	for (int r = 0; r < 8; ++r) {
+		for (int y = g_interlaced_rows[r]; y < height; y += 8) {
+			for (int x = 0; x < width; ++x) {
+				int source = refract_reproject_source(x, y, width, height, ratio, origin_x, origin_y, &px, &py);
+				if (source >= 0 && old_iters[source] == cache_max_iters) {
+					for (int p = 0; p < planes; ++p)
+						memcpy(old_z + (carried * planes + p) * value_size, z_cache + (p * plane + source) * value_size, value_size);
+					++carried;
+				}
+			}
+		}
+	}
+
+	int* restrict active_pixels = renderer->active_pixels;
+	int* restrict pending_pixels = renderer->pending_pixels;
+	iterc_t* restrict iter_buffer = renderer->iter_buffer;
+	int active_count = 0, pending_count = 0;
+	carried = 0;
+
+	// Interlaced rows mean each batch of pending pixels covers the whole screen
+	for (int r = 0; r < 8; ++r) {
+		for (int y = g_interlaced_rows[r]; y < height; y += 8) {
+			for (int x = 0, index = y * width; x < width; ++x, ++index) {
+				int source = refract_reproject_source(x, y, width, height, ratio, origin_x, origin_y, &px, &py);
+
+				if (source >= 0 && !(old_iters[source] & ITERC_PENDING)) {
+					iter_buffer[index] = old_iters[source];
+
+					if (old_iters[source] == cache_max_iters) {
+						for (int p = 0; p < planes; ++p)
+							memcpy(z_cache + (p * plane + index) * value_size, old_z + (carried * planes + p) * value_size, value_size);
+						++carried;
+
+						active_pixels[active_count++] = index;
+					}
+				}
+				else {
+					iter_buffer[index] = refract_reproject_estimate(old_iters, width, height, cache_max_iters, px, py);
+					pending_pixels[pending_count++] = index;
+				}
+			}
+		}
+	}
+
+	free(old_iters);
+	free(old_z);
+
+	// Split the pending pixels into equal batches
+	for (int b = 0; b < PENDING_BATCHES_MAX; ++b)
+		renderer->pending_ends[b] = (int)((int64_t)pending_count * (b + 1) / PENDING_BATCHES_MAX);
+
+	renderer->active_count = active_count;
+	renderer->pending_first = 0;
+	renderer->pending_count = pending_count;
+	renderer->pending_batch = 0;
+	renderer->pending_block = 0;
+	renderer->pending_iters = 0;
+	renderer->rect_count = 0;
+	renderer->cache_params = *params;
+	return true;
+}
+
+/**
+ * Iterates the next batch of pending pixels from scratch towards the current number of iterations,
+ * by at most the given number of iterations per frame. Like refinements these are split into slices,
+ * and stop early if the renderer is cancelled since the given generation. Until the batch catches up,
+ * its pixels which haven't escaped keep showing their estimates. Those which reach the current
+ * iterations without escaping then join the active pixels.
+ */
+static void refract_renderer_iterate_pending(renderer_t* renderer, params_t* params, iterc_t iters, int generation) {
+	const int first = renderer->pending_first;
+	const int end = renderer->pending_ends[renderer->pending_batch];
+	const iterc_t cache_max_iters = renderer->cache_max_iters;
+	const iterc_t max_iters = renderer->pending_iters + MIN(iters, cache_max_iters - renderer->pending_iters);
+	const iterc_t slice = MAX((max_iters - renderer->pending_iters + ITERATE_SLICES - 1) / ITERATE_SLICES, ITERATE_SLICE_MIN);
+	int* pending_pixels = renderer->pending_pixels;
+	iterc_t* estimates = renderer->pending_estimates;
+	iterc_t* iter_buffer = renderer->iter_buffer;
+
+	// Blocks of pixels showing coarser samples change all over the screen
+	refract_renderer_invalidate(renderer);
+
+	// Remember what a new batch shows until its pixels are resolved
+	if (renderer->pending_iters == 0) {
+		for (int i = first; i < end; ++i)
+			estimates[i] = iter_buffer[pending_pixels[i]];
+		renderer->pending_unescaped = end - first;
+	}
+
+	while (renderer->pending_unescaped > 0 && renderer->pending_iters < max_iters) {
+		iterc_t slice_max_iters = renderer->pending_iters + MIN(slice, max_iters - renderer->pending_iters);
+
+		iterate_job_t job = { renderer, params, slice_max_iters, renderer->pending_iters, pending_pixels + first, renderer->pending_unescaped };
+		refract_pool_run(&renderer->pool, refract_renderer_iterate_band, &job);
+
+		// Swap those which haven't escaped to the front of the batch, so that it stays a permutation
+		int unescaped = 0;
+		for (int i = first; i < first + renderer->pending_unescaped; ++i) {
+			if (iter_buffer[pending_pixels[i]] == slice_max_iters) {
+				int j = first + unescaped++;
+				int index = pending_pixels[i];
+				iterc_t estimate = estimates[i];
+				pending_pixels[i] = pending_pixels[j];
+				estimates[i] = estimates[j];
+				pending_pixels[j] = index;
+				estimates[j] = estimate;
+			}
+		}
+		renderer->pending_unescaped = unescaped;
+		renderer->pending_iters = slice_max_iters;
+
+		if (__atomic_load_n(&renderer->cancel_generation, __ATOMIC_ACQUIRE) != generation)
+			break;
+	}
+
+	// Unfinished batches carry on in the next frame
+	if (renderer->pending_unescaped > 0 && renderer->pending_iters < cache_max_iters) {
+		for (int i = first; i < first + renderer->pending_unescaped; ++i)
+			iter_buffer[pending_pixels[i]] = estimates[i];
+		return;
+	}
+
+	for (int i = first; i < first + renderer->pending_unescaped; ++i)
+		renderer->active_pixels[renderer->active_count++] = pending_pixels[i];
+
+	renderer->pending_first = end;
+	renderer->pending_batch++;
+	renderer->pending_iters = 0;
+	renderer->pending_unescaped = 0;
+
+	// Progressive renders show the samples of the finer pass in smaller blocks
+	if (renderer->pending_block > 1) {
+		renderer->pending_block /= 2;
+		refract_renderer_fill_pending(renderer);
+	}
+
+	// Symmetry can only be used once every pixel is being iterated
+	if (renderer->pending_first == renderer->pending_count && renderer->rect_count == 0)
+		refract_renderer_mirror_start(renderer);
+}
+
+/**
+ * Renders a renderer to the given pixel buffer. Only the pixels which have changed since the render
+ * before last are copied, so callers must alternate between the same two buffers, or always use one.
  */
 bool refract_renderer_render(renderer_t* renderer, color_t* pixels, int stride, mapping_t mapping) {
 
@@ -126,6 +1227,13 @@ bool refract_renderer_render(renderer_t* renderer, color_t* pixels, int stride,
 	if (max_iters == 0)
 		return false;
 
+	// Palette indexes are looked up by the bucket of each count above the lowest. Pixels which escape
+	// as a render is refined have higher counts than any which had before, so it only changes when the
+	// first ones escape.
+	const bool refined = renderer->dirty_count != DIRTY_ALL && renderer->color_min_iters < renderer->color_max_iters;
+	const iterc_t min_iters = refined ? renderer->color_min_iters : refract_renderer_min_iters(renderer);
+	const int buckets = (min_iters < max_iters) ? refract_histogram_bucket(max_iters - 1 - min_iters) + 1 : 0;
+
 	// Gather up frequently used items
 	const int pal_size = renderer->palette.size;
 	const int pal_index_max = pal_size - 1;
@@ -133,149 +1241,495 @@ bool refract_renderer_render(renderer_t* renderer, color_t* pixels, int stride,
 
 	switch (mapping) {
 	case REPEAT:
-		for (int i = 0; i < max_iters; ++i)
-			indexes[i] = i % pal_size;
+		for (int b = 0; b < buckets; ++b)
+			indexes[b] = (min_iters + refract_histogram_bucket_start(b)) % pal_size;
 		break;
 	case CLAMP:
-		for (int i = 0; i < max_iters; ++i)
-			indexes[i] = MIN(i, pal_index_max); // TODO optimize?
+		for (int b = 0; b < buckets; ++b)
+			indexes[b] = MIN(min_iters + refract_histogram_bucket_start(b), (iterc_t)pal_index_max);
 		break;
 	case SCALE_GLOBAL:
-		for (int i = 0; i < max_iters; ++i)
-			indexes[i] = pal_size * i / max_iters;
+		for (int b = 0; b < buckets; ++b)
+			indexes[b] = (uint64_t)pal_size * (min_iters + refract_histogram_bucket_start(b)) / max_iters;
 		break;
 	case SCALE_AUTO: {
-			refract_renderer_histogram(renderer);
-			iterc_t min, max;
-			refract_renderer_histogram_autoscale(renderer, &min, &max);
-			uint32_t range = (uint32_t)max - min;
+			refract_renderer_update_histogram(renderer, min_iters, buckets);
+			uint32_t range = refract_renderer_histogram_autoscale(renderer, min_iters, buckets) - min_iters;
 
 			if (range > 0) {
-				for (int i = min; i < max_iters; ++i) {
-					uint32_t index = pal_size * (i - min) / range;
-					indexes[i] = MIN(index, pal_index_max);
+				for (int b = 0; b < buckets; ++b) {
+					uint64_t index = (uint64_t)pal_size * refract_histogram_bucket_start(b) / range;
+					indexes[b] = MIN(index, (uint64_t)pal_index_max);
 				}
 			}
+			else
+				memset(indexes, 0, buckets * sizeof (int));
 			break;
 		}
 	case HISTOGRAM: {
-			const uint32_t* restrict histo = refract_renderer_histogram(renderer);
-			uint32_t total = refract_renderer_histogram_total(renderer);
-
-			// Only calculate if there are non-set pixels
-			if (total > 0) {
-				uint32_t pal_item_size = total / pal_size;
-				uint32_t histo_acc = 0;
-
-				if (pal_item_size > 0) {
-					for (int i = 0; i < max_iters; ++i) {
-						histo_acc += histo[i];
-						uint32_t index = histo_acc / pal_item_size;
-						indexes[i] = MIN(index, pal_index_max);
-					}
+			const uint32_t* restrict histo = refract_renderer_update_histogram(renderer, min_iters, buckets);
+			uint32_t total = refract_renderer_histogram_total(renderer, buckets);
+
+			uint32_t pal_item_size = total / pal_size;
+			uint32_t histo_acc = 0;
+
+			// Only calculate if there are enough non-set pixels to spread over the palette
+			if (pal_item_size > 0) {
+				for (int b = 0; b < buckets; ++b) {
+					histo_acc += histo[b];
+					uint32_t index = histo_acc / pal_item_size;
+					indexes[b] = MIN(index, (uint32_t)pal_index_max);
 				}
 			}
+			else
+				memset(indexes, 0, buckets * sizeof (int));
 			break;
 		}
 	}
 
+	const int width = renderer->width;
+	const int height = renderer->height;
 	const iterc_t* restrict iter_buffer = renderer->iter_buffer;
 	const color_t* restrict colors = renderer->palette.colors;
 	const color_t set_color = renderer->palette.set_color;
-	color_t* restrict line = pixels;
+	const int* color_indexes = renderer->color_indexes;
+	color_t* restrict color_buffer = renderer->color_buffer;
+	rect_t bounds = { width, height, -1, -1 };
+	int colored = 0;
 
-	// Fill pixel buffer based on palette indexes
-	for (int y = 0, index = 0; y < renderer->height; ++y) {
-		for (int x = 0; x < renderer->width; ++x, ++index) {
-			iterc_t iterc = iter_buffer[index];
-			line[x] = (iterc == max_iters) ? set_color : colors[indexes[iterc]];
+	// Pixels are colored in the renderer's own buffer, which only needs updating where counts or their
+	// palette indexes have changed. A new lowest count moves every pixel to a different bucket.
+	if (renderer->dirty_count == DIRTY_ALL || min_iters != renderer->color_min_iters || mapping != renderer->color_mapping) {
+		for (int y = 0, i = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x, ++i) {
+				iterc_t iterc = iter_buffer[i];
+				color_t color = (iterc >= max_iters) ? set_color : colors[indexes[refract_histogram_bucket(iterc - min_iters)]];
+				if (color != color_buffer[i]) {
+					color_buffer[i] = color;
+					refract_rect_include(&bounds, x, y);
+				}
+			}
+		}
+		colored = width * height;
+	}
+	else {
+		// Buckets beyond those of the last render only hold pixels which have changed since. Only REPEAT
+		// and CLAMP keep their indexes as a render is refined. SCALE_GLOBAL scales by the max iterations,
+		// and SCALE_AUTO and HISTOGRAM by the escaped pixels, so those move most buckets on nearly every
+		// frame that any pixels escape, and then every pixel is scanned, if not recolored.
+		bool remapped = false;
+		for (int b = 0; b < MIN(buckets, renderer->color_buckets) && !remapped; ++b)
+			remapped = (indexes[b] != color_indexes[b]);
+
+		if (remapped) {
+			for (int y = 0, i = 0; y < height; ++y) {
+				for (int x = 0; x < width; ++x, ++i) {
+					iterc_t iterc = iter_buffer[i];
+					if (iterc < max_iters) {
+						int b = refract_histogram_bucket(iterc - min_iters);
+						if (indexes[b] != color_indexes[b]) {
+							color_t color = colors[indexes[b]];
+							if (color != color_buffer[i]) {
+								color_buffer[i] = color;
+								refract_rect_include(&bounds, x, y);
+							}
+							++colored;
+						}
+					}
+				}
+			}
+		}
+
+		const int* restrict dirty_pixels = renderer->dirty_pixels;
+		for (int d = 0; d < renderer->dirty_count; ++d) {
+			int i = dirty_pixels[d];
+			iterc_t iterc = iter_buffer[i];
+			color_t color = (iterc >= max_iters) ? set_color : colors[indexes[refract_histogram_bucket(iterc - min_iters)]];
+			if (color != color_buffer[i]) {
+				color_buffer[i] = color;
+				refract_rect_include(&bounds, i % width, i / width);
+			}
+		}
+		colored += renderer->dirty_count;
+	}
+
+	memcpy(renderer->color_indexes, indexes, buckets * sizeof (int));
+	renderer->color_buckets = buckets;
+	renderer->color_min_iters = min_iters;
+	renderer->color_max_iters = max_iters;
+	renderer->color_mapping = mapping;
+	renderer->dirty_count = 0;
+	renderer->colored_count = colored;
+
+	// The pixel buffer is one of two which are rendered to in turn, so it's also missing the changes
+	// of the previous render. Buffers which are new since a resize need every pixel.
+	rect_t copy = bounds;
+	if (renderer->full_copies > 0) {
+		rect_t all = { 0, 0, width - 1, height - 1 };
+		copy = all;
+		renderer->full_copies--;
+	}
+	else if (renderer->color_bounds.x0 <= renderer->color_bounds.x1) {
+		refract_rect_include(&copy, renderer->color_bounds.x0, renderer->color_bounds.y0);
+		refract_rect_include(&copy, renderer->color_bounds.x1, renderer->color_bounds.y1);
+	}
+	renderer->color_bounds = bounds;
+
+	// Copy to the pixel buffer a row at a time as its stride may differ
+	if (copy.x0 <= copy.x1) {
+		const size_t row_size = (copy.x1 - copy.x0 + 1) * sizeof (color_t);
+		char* line = (char*)pixels + copy.y0 * stride + copy.x0 * sizeof (color_t);
+		for (int y = copy.y0; y <= copy.y1; ++y) {
+			memcpy(line, color_buffer + y * width + copy.x0, row_size);
+			line += stride;
 		}
-		line = (color_t*)((char*)line + stride);
 	}
 	return true;
 }
 
+/**
+ * Gets the number of pixels which are still being iterated or are pending, i.e. zero once the
+ * render has converged
+ */
+int refract_renderer_active_count(renderer_t* renderer) {
+	return renderer->active_count + refract_renderer_pending_count(renderer);
+}
+
+/**
+ * Gets the number of pixels which are pending, i.e. still to be iterated from scratch. Frames spent
+ * on these don't increase the iterations of the render.
+ */
+int refract_renderer_pending_count(renderer_t* renderer) {
+	return renderer->pending_count - renderer->pending_first;
+}
+
+/**
+ * Sets the number of threads used for iterating (zero or less means one per core)
+ */
+bool refract_renderer_set_threads(renderer_t* renderer, int threads) {
+	refract_pool_free(&renderer->pool);
+
+	return refract_pool_init(&renderer->pool, threads) && refract_renderer_reserve_band_histograms(renderer);
+}
+
+/**
+ * Sets how fresh renders choose which pixels to iterate, which takes effect from the next one
+ */
+void refract_renderer_set_strategy(renderer_t* renderer, strategy_t strategy) {
+	renderer->strategy = strategy;
+}
+
+/**
+ * Sets the max number of iterations of a render, which takes effect from the next frame
+ */
+void refract_renderer_set_iters_limit(renderer_t* renderer, iterc_t limit) {
+	renderer->iters_limit = MIN(limit, ITERC_MAX);
+}
+
+/**
+ * Cancels any iteration in progress on another thread, which stops at its next slice
+ */
+void refract_renderer_cancel(renderer_t* renderer) {
+	__atomic_add_fetch(&renderer->cancel_generation, 1, __ATOMIC_RELEASE);
+}
+
+/**
+ * Makes the next render color every pixel again, e.g. because the palette has changed
+ */
+void refract_renderer_invalidate(renderer_t* renderer) {
+	renderer->dirty_count = DIRTY_ALL;
+	renderer->histogram_valid = false;
+}
+
 /**
  * Frees a renderer
  */
 void refract_renderer_free(renderer_t* renderer) {
+	// Stop worker threads
+	refract_pool_free(&renderer->pool);
+
 	// Free palette
 	refract_palette_free(&renderer->palette);
 
 	// Free palette indexes
 	SAFE_FREE(renderer->palette_indexes);
 
-	// Free iters histogram
+	// Free iters histograms
 	SAFE_FREE(renderer->iter_histogram);
+	SAFE_FREE(renderer->band_histograms);
+
+	// Free palette indexes of the last render
+	SAFE_FREE(renderer->color_indexes);
 
 	// Free screen buffers
-	SAFE_FREE(renderer->iter_buffer);
-	SAFE_FREE(renderer->z_cache);
+	SAFE_ALIGNED_FREE(renderer->iter_buffer);
+	SAFE_FREE(renderer->active_pixels);
+	SAFE_FREE(renderer->pending_pixels);
+	SAFE_FREE(renderer->pending_estimates);
+	SAFE_FREE(renderer->rects);
+	SAFE_ALIGNED_FREE(renderer->z_cache);
+	SAFE_FREE(renderer->color_buffer);
+	SAFE_FREE(renderer->dirty_pixels);
+	renderer->z_cache_size = 0;
+	renderer->active_count = 0;
+	renderer->pending_first = renderer->pending_count = 0;
+	renderer->rect_count = 0;
+
+	// Free reference orbit
+	refract_orbit_free(&renderer->orbit);
 }
 
 /**
- * Calculates a histogram of iteration values
+ * Makes sure the z cache is big enough to hold values of the given precision. The cache is only
+ * reallocated when it needs to grow so switching precision back and forth doesn't thrash memory.
  */
-uint32_t* refract_renderer_histogram(renderer_t* renderer) {
+static bool refract_renderer_reserve_z_cache(renderer_t* renderer, precision_t precision) {
+	size_t size = g_z_cache_pixel_size[precision] * Z_PLANE_SIZE(renderer);
+
+	if (renderer->z_cache && renderer->z_cache_size >= size)
+		return true;
+
+	SAFE_ALIGNED_FREE(renderer->z_cache);
+	renderer->z_cache_size = 0;
+
+	// Any cached values are lost
+	renderer->cache_max_iters = 0;
+
+	if ((renderer->z_cache = refract_aligned_alloc(size)) == NULL)
+		return false;
+
+	renderer->z_cache_size = size;
+	return true;
+}
+
+/**
+ * Makes sure there's a histogram for each band of a parallel histogram besides the first, which
+ * uses the renderer's own
+ */
+static bool refract_renderer_reserve_band_histograms(renderer_t* renderer) {
+	SAFE_FREE(renderer->band_histograms);
+
+	if (renderer->pool.size <= 1)
+		return true;
+
+	renderer->band_histograms = malloc(sizeof (uint32_t) * HISTOGRAM_BUCKETS * (renderer->pool.size - 1));
+	return renderer->band_histograms != NULL;
+}
+
+/**
+ * Finds the lowest iteration count of one band of the pixels
+ */
+static void refract_renderer_min_iters_band(void* arg, int band, int bands) {
+	histogram_job_t* job = (histogram_job_t*)arg;
+	const renderer_t* renderer = job->renderer;
 	const iterc_t* restrict iters = renderer->iter_buffer;
-	uint32_t* restrict histo = renderer->iter_histogram;
+	const int count = renderer->width * renderer->height;
+	const int end = (int)((int64_t)count * (band + 1) / bands);
+	iterc_t min = renderer->cache_max_iters;
+
+	for (int i = (int)((int64_t)count * band / bands); i < end; ++i)
+		min = MIN(min, iters[i]);
+
+	job->band_min_iters[band] = min;
+}
+
+/**
+ * Finds the lowest iteration count of pixels which have escaped, or the max iterations if none have
+ */
+iterc_t refract_renderer_min_iters(renderer_t* renderer) {
+	histogram_job_t job = { .renderer = renderer };
+	iterc_t min = renderer->cache_max_iters;
 
-	// Zeroize iter counts
-	for (int c = 0; c <= renderer->cache_max_iters; ++c)
-		histo[c] = 0;
+	refract_pool_run(&renderer->pool, refract_renderer_min_iters_band, &job);
 
-	// Accumulate iter counts
-	for (int i = 0; i < (renderer->width * renderer->height); ++i)
-		++histo[iters[i]];
+	for (int b = 0; b < renderer->pool.size; ++b)
+		min = MIN(min, job.band_min_iters[b]);
 
-	return histo;
+	return min;
 }
 
 /**
- * Analyzes a histogram to find minimum, maximum
+ * Counts the iteration counts of one band of the pixels in that band's histogram
  */
-void refract_renderer_histogram_autoscale(renderer_t* renderer, iterc_t* min, iterc_t* max) {
-	const uint32_t* restrict histo = renderer->iter_histogram;
+static void refract_renderer_histogram_band(void* arg, int band, int bands) {
+	histogram_job_t* job = (histogram_job_t*)arg;
+	const renderer_t* renderer = job->renderer;
+	const iterc_t* restrict iters = renderer->iter_buffer;
+	const iterc_t min_iters = job->min_iters;
+	const iterc_t max_iters = renderer->cache_max_iters;
+	const int count = renderer->width * renderer->height;
+	const int end = (int)((int64_t)count * (band + 1) / bands);
+	uint32_t* restrict histo = (band == 0) ? renderer->iter_histogram : renderer->band_histograms + (band - 1) * HISTOGRAM_BUCKETS;
 
-	// Find minimum iteration value
-	for (int i = 0; i <= ITERC_MAX; ++i) {
-		if (histo[i] > 0) {
-			*min = i;
-			break;
-		}
+	// Zeroize bucket counts
+	for (int b = 0; b < job->buckets; ++b)
+		histo[b] = 0;
+
+	// Accumulate iter counts, not including pixels in the set
+	for (int i = (int)((int64_t)count * band / bands); i < end; ++i) {
+		if (iters[i] < max_iters)
+			++histo[refract_histogram_bucket(iters[i] - min_iters)];
+	}
+}
+
+/**
+ * Adds the histograms of the other bands to the first one, for one band of the buckets
+ */
+static void refract_renderer_histogram_merge_band(void* arg, int band, int bands) {
+	histogram_job_t* job = (histogram_job_t*)arg;
+	const renderer_t* renderer = job->renderer;
+	const uint32_t* restrict band_histos = renderer->band_histograms;
+	uint32_t* restrict histo = renderer->iter_histogram;
+	const int end = (int)((int64_t)job->buckets * (band + 1) / bands);
+
+	for (int b = (int)((int64_t)job->buckets * band / bands); b < end; ++b) {
+		uint32_t sum = histo[b];
+		for (int h = 0; h < bands - 1; ++h)
+			sum += band_histos[h * HISTOGRAM_BUCKETS + b];
+		histo[b] = sum;
+	}
+}
+
+/**
+ * Calculates a histogram of the iteration counts of pixels which have escaped, bucketed by how far
+ * above the lowest they are. Each worker thread counts its own band of pixels, and then adds up its
+ * own band of buckets.
+ */
+uint32_t* refract_renderer_histogram(renderer_t* renderer, iterc_t min_iters, int buckets) {
+	histogram_job_t job = { .renderer = renderer, .min_iters = min_iters, .buckets = buckets };
+
+	if (renderer->band_histograms) {
+		refract_pool_run(&renderer->pool, refract_renderer_histogram_band, &job);
+		refract_pool_run(&renderer->pool, refract_renderer_histogram_merge_band, &job);
 	}
+	else
+		refract_renderer_histogram_band(&job, 0, 1);
+
+	// Counts beyond these buckets are added as pixels escape
+	memset(renderer->iter_histogram + buckets, 0, sizeof (uint32_t) * (HISTOGRAM_BUCKETS - buckets));
 
-	// Find value that covers all but top 0.5% of remaining iteration values for palette end
+	renderer->histogram_min_iters = min_iters;
+	renderer->histogram_valid = true;
+	return renderer->iter_histogram;
+}
+
+/**
+ * Gets the histogram of the iteration counts of pixels which have escaped, only calculating it if it
+ * hasn't been kept up to date since the last one was calculated with the same lowest count
+ */
+static const uint32_t* refract_renderer_update_histogram(renderer_t* renderer, iterc_t min_iters, int buckets) {
+	if (renderer->histogram_valid && renderer->histogram_min_iters == min_iters)
+		return renderer->iter_histogram;
+
+	return refract_renderer_histogram(renderer, min_iters, buckets);
+}
+
+/**
+ * Analyzes a histogram to find the iteration count that covers all but top 0.5% of pixels, for the
+ * palette end
+ */
+iterc_t refract_renderer_histogram_autoscale(renderer_t* renderer, iterc_t min_iters, int buckets) {
+	const uint32_t* restrict histo = renderer->iter_histogram;
 	uint32_t cumul_histo = 0;
 	uint32_t threshold = (5 * renderer->width * renderer->height) / 1000;
 
-	// Don't include pixels which are in the set
-	for (int i = renderer->cache_max_iters - 1; i >= 0; --i) {
-		cumul_histo += histo[i];
-		if (cumul_histo >= threshold) {
-			*max = i;
-			break;
-		}
+	for (int b = buckets - 1; b >= 0; --b) {
+		cumul_histo += histo[b];
+		if (cumul_histo >= threshold)
+			return min_iters + refract_histogram_bucket_start(b);
 	}
+	return min_iters;
 }
 
 /**
  * Calculates the total of a histogram
  */
-uint32_t refract_renderer_histogram_total(renderer_t* renderer) {
+uint32_t refract_renderer_histogram_total(renderer_t* renderer, int buckets) {
 	const uint32_t* restrict histo = renderer->iter_histogram;
 	uint32_t total = 0;
 
-	// Count all histogram values up to but not including the max iter value (i.e. the set)
-	for (int i = 0; i < renderer->cache_max_iters; ++i)
-		total += histo[i];
+	for (int b = 0; b < buckets; ++b)
+		total += histo[b];
 
 	return total;
 }
 
+/**
+ * Allocates a block of memory aligned to BUFFER_ALIGN bytes
+ */
+void* refract_aligned_alloc(size_t size) {
+	// Over-allocate so there's room to align the block and store the original pointer before it
+	void* block = malloc(size + BUFFER_ALIGN + sizeof (void*));
+	if (!block)
+		return NULL;
+
+	uintptr_t aligned = ((uintptr_t)block + sizeof (void*) + BUFFER_ALIGN - 1) & ~(uintptr_t)(BUFFER_ALIGN - 1);
+	((void**)aligned)[-1] = block;
+	return (void*)aligned;
+}
+
+/**
+ * Frees a block allocated by refract_aligned_alloc
+ */
+void refract_aligned_free(void* ptr) {
+	free(((void**)ptr)[-1]);
+}
+
+/**
+ * Selects the precision needed to render the given params. Each pixel is 1 / zoom apart so telling
+ * neighbouring pixels apart needs log2(magnitude * zoom) bits of mantissa, plus some guard bits.
+ * There are no perturbation kernels for Julia sets so those go no deeper than double-double.
+ */
+precision_t refract_params_precision(const params_t* params) {
+	// Points near the view can be up to about 2 from the origin even if the offset is small
+	double magnitude = MAX(MAX(fabs(params->offset.re), fabs(params->offset.im)), 2.0);
+	int bits;
+	frexp(magnitude * params->zoom, &bits);
+	bits += PRECISION_GUARD_BITS;
+
+	if (bits <= g_precision_bits[PRECISION_FLOAT])
+		return PRECISION_FLOAT;
+	else if (bits <= g_precision_bits[PRECISION_DOUBLE])
+		return PRECISION_DOUBLE;
+	else if (bits <= g_precision_bits[PRECISION_DOUBLE_DOUBLE] || params->func.julia)
+		return PRECISION_DOUBLE_DOUBLE;
+	else
+		return PRECISION_PERTURBATION;
+}
+
+/**
+ * Sets the offset of params from exact decimal strings. The offset is also rounded to doubles, and
+ * the remainders kept for the double-double kernels.
+ */
+bool refract_params_set_exact(params_t* params, const char* re, const char* im) {
+	if (!refract_bigfix_parse(&params->exact_re, re, BIGFIX_LIMBS_MAX) || !refract_bigfix_parse(&params->exact_im, im, BIGFIX_LIMBS_MAX))
+		return false;
+
+	params->exact = true;
+	params->offset.re = refract_bigfix_to_double(&params->exact_re, BIGFIX_LIMBS_MAX);
+	params->offset.im = refract_bigfix_to_double(&params->exact_im, BIGFIX_LIMBS_MAX);
+
+	bigfix_t hi, lo;
+	refract_bigfix_from_double(&hi, params->offset.re, BIGFIX_LIMBS_MAX);
+	refract_bigfix_sub(&lo, &params->exact_re, &hi, BIGFIX_LIMBS_MAX);
+	params->offset_lo.re = refract_bigfix_to_double(&lo, BIGFIX_LIMBS_MAX);
+
+	refract_bigfix_from_double(&hi, params->offset.im, BIGFIX_LIMBS_MAX);
+	refract_bigfix_sub(&lo, &params->exact_im, &hi, BIGFIX_LIMBS_MAX);
+	params->offset_lo.im = refract_bigfix_to_double(&lo, BIGFIX_LIMBS_MAX);
+	return true;
+}
+
 /**
  * Checks if two params objects are equal
  */
 bool refract_params_equal(params_t* p1, params_t* p2) {
-	return p1->func == p2->func && p1->offset.re == p2->offset.re && p1->offset.im == p2->offset.im && p1->zoom == p2->zoom;
+	if (!refract_func_equal(&p1->func, &p2->func) || p1->offset.re != p2->offset.re || p1->offset.im != p2->offset.im || p1->zoom != p2->zoom)
+		return false;
+
+	// Exact offsets can differ beyond double precision
+	if (p1->exact != p2->exact)
+		return false;
+
+	return !p1->exact || (memcmp(&p1->exact_re, &p2->exact_re, sizeof (bigfix_t)) == 0 && memcmp(&p1->exact_im, &p2->exact_im, sizeof (bigfix_t)) == 0);
 }
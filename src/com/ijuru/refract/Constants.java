@@ -43,6 +43,9 @@ public class Constants {
 	public static final String PREF_PARAMS_OFFSET = "params.offset";
 	public static final String PREF_PARAMS_ZOOM = "params.zoom";
 	public static final String PREF_ITERS_PERFRAME = "itersperframe";
+	public static final String PREF_MAX_ITERS = "maxiters";
+	public static final String PREF_RENDERER_THREADS = "renderer.threads";
+	public static final String PREF_RENDERER_STRATEGY = "renderer.strategy";
 	public static final String PREF_PALETTE_PRESET = "palette.preset";
 	public static final String PREF_PALETTE_MAPPING = "palette.mapping";
 	public static final String PREF_PALETTE_SIZE = "palette.size";
@@ -31,13 +31,6 @@ import android.os.Environment;
 public class RefractApplication extends Application {
 	
 	private BookmarkManager bookmarkManager = new BookmarkManager(this);
-	
-	/**
-	 * Load the native library
-	 */
-	static {
-        System.loadLibrary("refract");
-    }
 
 	/**
 	 * Gets the bookmark manager
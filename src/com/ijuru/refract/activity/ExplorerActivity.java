@@ -22,18 +22,21 @@ package com.ijuru.refract.activity;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.math.BigDecimal;
 import java.util.Date;
 
 import com.ijuru.refract.Bookmark;
 import com.ijuru.refract.Constants;
 import com.ijuru.refract.R;
 import com.ijuru.refract.RefractApplication;
+import com.ijuru.refract.renderer.BigComplex;
 import com.ijuru.refract.renderer.Complex;
 import com.ijuru.refract.renderer.Mapping;
 import com.ijuru.refract.renderer.Palette;
 import com.ijuru.refract.renderer.RendererParams;
 import com.ijuru.refract.renderer.Renderer;
 import com.ijuru.refract.renderer.RendererListener;
+import com.ijuru.refract.renderer.Strategy;
 import com.ijuru.refract.ui.RendererView;
 import com.ijuru.refract.ui.StatusPanel;
 import com.ijuru.refract.utils.Preferences;
@@ -157,8 +160,8 @@ public class ExplorerActivity extends Activity implements RendererListener {
 		
 		// Set controls to curent renderer parameters
 		RendererParams params = rendererView.getRendererParams();
-		editReal.setText("" + params.getOffset().re);
-		editImag.setText("" + params.getOffset().im);
+		editReal.setText(params.getExactOffset().re.toPlainString());
+		editImag.setText(params.getExactOffset().im.toPlainString());
 		editZoom.setText("" + params.getZoom());
 
 		// Construct the dialog
@@ -168,11 +171,10 @@ public class ExplorerActivity extends Activity implements RendererListener {
 			@Override
 			public void onClick(DialogInterface dialog, int id) {
 				try {
-					double offset_re = Double.parseDouble(editReal.getText().toString());
-					double offset_im = Double.parseDouble(editImag.getText().toString());
+					BigDecimal offset_re = new BigDecimal(editReal.getText().toString().trim());
+					BigDecimal offset_im = new BigDecimal(editImag.getText().toString().trim());
 					double zoom = Double.parseDouble(editZoom.getText().toString());
-					rendererView.getRendererParams().setOffset(new Complex(offset_re, offset_im));
-					rendererView.getRendererParams().setZoom(zoom);
+					rendererView.setRendererParams(rendererView.getRendererParams().withOffset(new BigComplex(offset_re, offset_im)).withZoom(zoom));
 					statusPanel.setParams(rendererView.getRendererParams());
 				}
 				catch (NumberFormatException ex) {
@@ -267,8 +269,7 @@ public class ExplorerActivity extends Activity implements RendererListener {
 	 * @param view the button
 	 */
 	public void onButtonReset(View view) {
-		rendererView.getRendererParams().setOffset(Complex.ORIGIN);
-		rendererView.getRendererParams().setZoom(rendererView.getWidth() / 2);
+		rendererView.setRendererParams(rendererView.getRendererParams().withOffset(Complex.ORIGIN).withZoom(rendererView.getWidth() / 2));
 		statusPanel.setParams(rendererView.getRendererParams());
 	}
 	
@@ -278,7 +279,7 @@ public class ExplorerActivity extends Activity implements RendererListener {
 	 */
 	public void onButtonZoomIn(View view) {
 		double zoom = rendererView.getRendererParams().getZoom() * 2;
-		rendererView.getRendererParams().setZoom(zoom);
+		rendererView.setRendererParams(rendererView.getRendererParams().withZoom(zoom));
 		statusPanel.setParams(rendererView.getRendererParams());
 	}
 	
@@ -288,7 +289,7 @@ public class ExplorerActivity extends Activity implements RendererListener {
 	 */
 	public void onButtonZoomOut(View view) {
 		double zoom = rendererView.getRendererParams().getZoom() / 2;
-		rendererView.getRendererParams().setZoom(zoom);
+		rendererView.setRendererParams(rendererView.getRendererParams().withZoom(zoom));
 		statusPanel.setParams(rendererView.getRendererParams());
 	}
 
@@ -327,11 +328,15 @@ public class ExplorerActivity extends Activity implements RendererListener {
 		int paletteSize = Preferences.getIntegerPreference(this, Constants.PREF_PALETTE_SIZE, R.integer.def_palettesize);
 		int setColor = Preferences.getIntegerPreference(this, Constants.PREF_PALETTE_SETCOLOR, R.integer.def_palettesetcolor);
 		int itersPerFrame = Preferences.getIntegerPreference(this, Constants.PREF_ITERS_PERFRAME, R.integer.def_itersperframe);
+		int maxIters = Preferences.getIntegerPreference(this, Constants.PREF_MAX_ITERS, R.integer.def_maxiters);
+		int threads = Preferences.getIntegerPreference(this, Constants.PREF_RENDERER_THREADS, R.integer.def_rendererthreads);
+		Strategy defStrategy = Strategy.parseString(getString(R.string.def_rendererstrategy));
+		Strategy strategy = Preferences.getStrategyPreference(this, Constants.PREF_RENDERER_STRATEGY, defStrategy);
 		RendererParams params = Preferences.getParametersPreference(this, Constants.PREF_PARAMS);
 		
 		// If zoom is 0, default to half the width of the screen
 		if (params.getZoom() == 0.0)
-			params.setZoom(view.getWidth() / 2);
+			params = params.withZoom(view.getWidth() / 2);
 		
 		view.setPaletteMapping(paletteMapping);
 		view.setRendererParams(params);
@@ -340,6 +345,9 @@ public class ExplorerActivity extends Activity implements RendererListener {
 		float bias = (paletteMapping == Mapping.HISTOGRAM) ? 5.0f : 1.0f;
 		
 		renderer.setPalette(palette, paletteSize, bias, setColor);
+		renderer.setThreadCount(threads);
+		renderer.setStrategy(strategy);
+		renderer.setMaxIterations(maxIters);
 		
 		statusPanel.setParams(params);
 	}
@@ -358,8 +366,10 @@ public class ExplorerActivity extends Activity implements RendererListener {
 	@Override
 	public void onRendererIterated(RendererView view, Renderer renderer, int iters) {
 		long avgFrameTime = rendererView.getRendererThread().calcSmoothedFrameTime();
+		int pixels = renderer.getWidth() * renderer.getHeight();
+		double colored = (pixels > 0) ? (100.0 * renderer.getColoredCount() / pixels) : 0;
 		
-		statusPanel.setPerformanceInfo(iters, avgFrameTime > 0 ? 1000.0 / avgFrameTime : 0);
+		statusPanel.setPerformanceInfo(iters, avgFrameTime > 0 ? 1000.0 / avgFrameTime : 0, colored);
 	}
 	
 	/**
@@ -38,8 +38,8 @@ import android.widget.Toast;
  */
 public class SettingsActivity extends PreferenceActivity implements OnPreferenceChangeListener {
 
-	private ListPreference iterFunctionPref, paletteMappingPref;
-	private EditTextPreference itersPerFramePref, paletteSizePref;
+	private ListPreference iterFunctionPref, rendererStrategyPref, paletteMappingPref;
+	private EditTextPreference itersPerFramePref, maxItersPref, rendererThreadsPref, paletteSizePref;
 	
 	/**
 	 * @see android.preference.PreferenceActivity#onCreate(android.os.Bundle)
@@ -55,6 +55,15 @@ public class SettingsActivity extends PreferenceActivity implements OnPreference
 		itersPerFramePref = (EditTextPreference)getPreferenceScreen().findPreference(Constants.PREF_ITERS_PERFRAME);
 		itersPerFramePref.setOnPreferenceChangeListener(this);
 		
+		maxItersPref = (EditTextPreference)getPreferenceScreen().findPreference(Constants.PREF_MAX_ITERS);
+		maxItersPref.setOnPreferenceChangeListener(this);
+		
+		rendererThreadsPref = (EditTextPreference)getPreferenceScreen().findPreference(Constants.PREF_RENDERER_THREADS);
+		rendererThreadsPref.setOnPreferenceChangeListener(this);
+		
+		rendererStrategyPref = (ListPreference)getPreferenceScreen().findPreference(Constants.PREF_RENDERER_STRATEGY);
+		rendererStrategyPref.setOnPreferenceChangeListener(this);
+		
 		paletteMappingPref = (ListPreference)getPreferenceScreen().findPreference(Constants.PREF_PALETTE_MAPPING);
 		paletteMappingPref.setOnPreferenceChangeListener(this);
 		
@@ -63,6 +72,9 @@ public class SettingsActivity extends PreferenceActivity implements OnPreference
 		
 		updatePreferenceSummary(iterFunctionPref, iterFunctionPref.getValue());
 		updatePreferenceSummary(itersPerFramePref, itersPerFramePref.getText());
+		updatePreferenceSummary(maxItersPref, maxItersPref.getText());
+		updatePreferenceSummary(rendererThreadsPref, rendererThreadsPref.getText());
+		updatePreferenceSummary(rendererStrategyPref, rendererStrategyPref.getValue());
 		updatePreferenceSummary(paletteMappingPref, paletteMappingPref.getValue());
 		updatePreferenceSummary(paletteSizePref, paletteSizePref.getText());
 	}
@@ -83,6 +95,14 @@ public class SettingsActivity extends PreferenceActivity implements OnPreference
 			if (!validateRange(value, res.getInteger(R.integer.min_itersperframe), res.getInteger(R.integer.max_itersperframe)))
 				return false;
 		} 
+		else if (preference == maxItersPref) {
+			if (!validateRange(value, res.getInteger(R.integer.min_maxiters), res.getInteger(R.integer.max_maxiters)))
+				return false;
+		} 
+		else if (preference == rendererThreadsPref) {
+			if (!validateRange(value, res.getInteger(R.integer.min_rendererthreads), res.getInteger(R.integer.max_rendererthreads)))
+				return false;
+		} 
 		else if (preference == paletteSizePref) {
 			if (!validateRange(value, res.getInteger(R.integer.min_palettesize), res.getInteger(R.integer.max_palettesize)))
 				return false;
@@ -28,6 +28,7 @@ import com.ijuru.refract.renderer.Palette;
 import com.ijuru.refract.renderer.RendererParams;
 import com.ijuru.refract.renderer.Renderer;
 import com.ijuru.refract.renderer.RendererListener;
+import com.ijuru.refract.renderer.Strategy;
 import com.ijuru.refract.ui.RendererView;
 import com.ijuru.refract.utils.Preferences;
 
@@ -98,6 +99,10 @@ public class WallpaperActivity extends Activity implements RendererListener {
 		int paletteSize = Preferences.getIntegerPreference(this, Constants.PREF_PALETTE_SIZE, R.integer.def_palettesize);
 		int setColor = Preferences.getIntegerPreference(this, Constants.PREF_PALETTE_SETCOLOR, R.integer.def_palettesetcolor);
 		int itersPerFrame = Preferences.getIntegerPreference(this, Constants.PREF_ITERS_PERFRAME, R.integer.def_itersperframe);
+		int maxIters = Preferences.getIntegerPreference(this, Constants.PREF_MAX_ITERS, R.integer.def_maxiters);
+		int threads = Preferences.getIntegerPreference(this, Constants.PREF_RENDERER_THREADS, R.integer.def_rendererthreads);
+		Strategy defStrategy = Strategy.parseString(getString(R.string.def_rendererstrategy));
+		Strategy strategy = Preferences.getStrategyPreference(this, Constants.PREF_RENDERER_STRATEGY, defStrategy);
 			
 		// Set render parameters from intent if they exist
 		Intent intent = getIntent();
@@ -112,6 +117,9 @@ public class WallpaperActivity extends Activity implements RendererListener {
 		float bias = (paletteMapping == Mapping.HISTOGRAM) ? 5.0f : 1.0f;
 		
 		renderer.setPalette(palette, paletteSize, bias, setColor);
+		renderer.setThreadCount(threads);
+		renderer.setStrategy(strategy);
+		renderer.setMaxIterations(maxIters);
 	}
 
 	/**
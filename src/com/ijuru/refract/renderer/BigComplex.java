@@ -0,0 +1,133 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ *
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.renderer;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Arbitrary precision complex number
+ */
+public final class BigComplex {
+	public final BigDecimal re;
+	public final BigDecimal im;
+
+	public static final BigComplex ORIGIN = new BigComplex(BigDecimal.ZERO, BigDecimal.ZERO);
+
+	/**
+	 * Constructs a new complex number
+	 * @param re the real component
+	 * @param im the imaginary component
+	 */
+	public BigComplex(BigDecimal re, BigDecimal im) {
+		this.re = re;
+		this.im = im;
+	}
+
+	/**
+	 * Constructs a new complex number from a double precision one
+	 * @param c the double precision complex number
+	 */
+	public BigComplex(Complex c) {
+		this(BigDecimal.valueOf(c.re), BigDecimal.valueOf(c.im));
+	}
+
+	/**
+	 * Adds a double precision complex number to this one
+	 * @param c the complex number
+	 * @param scale the maximum number of decimal places to keep
+	 * @return the result
+	 */
+	public BigComplex add(Complex c, int scale) {
+		return new BigComplex(round(re.add(BigDecimal.valueOf(c.re)), scale), round(im.add(BigDecimal.valueOf(c.im)), scale));
+	}
+
+	/**
+	 * Subtracts a complex number from this one
+	 * @param c the complex number
+	 * @return the result
+	 */
+	public BigComplex sub(BigComplex c) {
+		return new BigComplex(this.re.subtract(c.re), this.im.subtract(c.im));
+	}
+
+	/**
+	 * Converts to the nearest double precision complex number
+	 * @return the double precision value
+	 */
+	public Complex toComplex() {
+		return new Complex(re.doubleValue(), im.doubleValue());
+	}
+
+	/**
+	 * Rounds a value to at most the given number of decimal places
+	 * @param value the value
+	 * @param scale the number of decimal places
+	 * @return the rounded value
+	 */
+	private static BigDecimal round(BigDecimal value, int scale) {
+		return value.scale() > scale ? value.setScale(scale, RoundingMode.HALF_EVEN) : value;
+	}
+
+	/**
+	 * Parses a complex value from a string
+	 * @param str the string
+	 * @return the value
+	 * @throws NumberFormatException
+	 */
+	public static BigComplex parseComplex(String str) throws NumberFormatException {
+		String[] components = str.split(",");
+		if (components.length != 2)
+			throw new NumberFormatException();
+
+		BigDecimal re = new BigDecimal(components[0].trim());
+		BigDecimal im = new BigDecimal(components[1].trim());
+		return new BigComplex(re, im);
+	}
+
+	/**
+	 * @see java.lang.Object#equals(Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof BigComplex) {
+			BigComplex c = (BigComplex)obj;
+			return c.re.compareTo(this.re) == 0 && c.im.compareTo(this.im) == 0;
+		}
+		return false;
+	}
+
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		// Consistent with equals which ignores scale, e.g. 0.5 equals 0.50
+		return toComplex().hashCode();
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return re + "," + im;
+	}
+}
@@ -20,31 +20,136 @@
 package com.ijuru.refract.renderer;
 
 /**
- * Iteration function types
+ * Iteration function, i.e. z = z^d + c for the Multibrot set of degree d, or z = z^d + k for the
+ * Julia set of constant k where z starts at the pixel instead
  */
-public enum Function {
-	MANDELBROT,		// z = z^2 + c
-	MANDELBROT_3,	// z = z^3 + c
-	MANDELBROT_4;	// z = z^4 + c
+public final class Function {
 	
 	/**
-	 * Parses a function from a string
+	 * Range of degrees which renderers support
+	 */
+	public static final int DEGREE_MIN = 2;
+	public static final int DEGREE_MAX = 8;
+	
+	public static final Function MANDELBROT = new Function(2);		// z = z^2 + c
+	public static final Function MANDELBROT_3 = new Function(3);	// z = z^3 + c
+	public static final Function MANDELBROT_4 = new Function(4);	// z = z^4 + c
+	
+	private final int degree;
+	private final boolean julia;
+	private final Complex k;
+	
+	/**
+	 * Constructs a Multibrot function
+	 * @param degree the degree
+	 */
+	public Function(int degree) {
+		this(degree, false, Complex.ORIGIN);
+	}
+	
+	/**
+	 * Constructs a Julia function
+	 * @param degree the degree
+	 * @param k the constant
+	 */
+	public Function(int degree, Complex k) {
+		this(degree, true, k);
+	}
+	
+	/**
+	 * Constructs a function
+	 * @param degree the degree
+	 * @param julia whether this is a Julia function
+	 * @param k the constant if this is a Julia function
+	 */
+	private Function(int degree, boolean julia, Complex k) {
+		if (degree < DEGREE_MIN || degree > DEGREE_MAX)
+			throw new IllegalArgumentException("Degree must be between " + DEGREE_MIN + " and " + DEGREE_MAX);
+		
+		this.degree = degree;
+		this.julia = julia;
+		this.k = k;
+	}
+	
+	/**
+	 * Gets the degree
+	 * @return the degree
+	 */
+	public int getDegree() {
+		return degree;
+	}
+	
+	/**
+	 * Gets whether this is a Julia function
+	 * @return true if this is a Julia function
+	 */
+	public boolean isJulia() {
+		return julia;
+	}
+	
+	/**
+	 * Gets the constant of a Julia function
+	 * @return the constant
+	 */
+	public Complex getK() {
+		return k;
+	}
+	
+	/**
+	 * Parses a function from a string such as "mandelbrot_3" or "julia:-0.8,0.156"
 	 * @param str the string to parse
 	 * @return the function or null
 	 */
 	public static Function parseString(String str) {
-		for (Function function : values()) {
-			if (function.name().toLowerCase().equals(str))
-				return function;
+		if (str == null)
+			return null;
+		
+		int colon = str.indexOf(':');
+		String name = colon >= 0 ? str.substring(0, colon) : str;
+		int underscore = name.indexOf('_');
+		String type = underscore >= 0 ? name.substring(0, underscore) : name;
+		
+		try {
+			int degree = underscore >= 0 ? Integer.parseInt(name.substring(underscore + 1)) : 2;
+			if (degree < DEGREE_MIN || degree > DEGREE_MAX)
+				return null;
+			
+			if (type.equals("mandelbrot") && colon < 0)
+				return new Function(degree);
+			else if (type.equals("julia") && colon >= 0)
+				return new Function(degree, Complex.parseComplex(str.substring(colon + 1)));
+		}
+		catch (NumberFormatException ex) {
 		}
 		return null;
 	}
+	
+	/**
+	 * @see java.lang.Object#equals(Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof Function) {
+			Function f = (Function)obj;
+			return f.degree == degree && f.julia == julia && (!julia || f.k.equals(k));
+		}
+		return false;
+	}
+
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return degree + (julia ? k.hashCode() : 0);
+	}
 
 	/**
-	 * @see java.lang.Enum#toString()
+	 * @see java.lang.Object#toString()
 	 */
 	@Override
 	public String toString() {
-		return name().toLowerCase();
+		String name = (julia ? "julia" : "mandelbrot") + (degree > 2 ? "_" + degree : "");
+		return julia ? (name + ":" + k) : name;
 	}
 }
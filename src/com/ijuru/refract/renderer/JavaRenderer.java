@@ -0,0 +1,765 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ *
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.renderer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * Pure Java implementation of a fractal renderer which doesn't depend on the native library. Like the
+ * native renderer it skips pixels known to be in the set and detects periodic orbits, so both converge
+ * on the same images, but it only iterates in single precision so it can't zoom as deep. Rendering to
+ * a pixel buffer doesn't use any Android classes, so it can also run on a plain JVM.
+ */
+public class JavaRenderer implements Renderer {
+
+	/**
+	 * Max count of iterations
+	 */
+	public static final int ITERC_MAX = (1 << 30) - 1;
+
+	/**
+	 * Iteration count of pixels known to be in the set, which never need iterating again
+	 */
+	public static final int ITERC_SET = ITERC_MAX + 1;
+
+	/**
+	 * Default limit on the iterations of a render
+	 */
+	public static final int ITERS_LIMIT_DEFAULT = 0xFFF;
+
+	/**
+	 * Distance in pixels within which an orbit is considered to have returned to an earlier point
+	 */
+	private static final float PERIOD_TOLERANCE = 1e-4f;
+
+	/**
+	 * Squares of the radii of the largest discs about the origin inside the main component of each
+	 * Multibrot set, rounded down
+	 */
+	private static final double[] INTERIOR_RADII_2 = { 0, 0, 0, 0.1481481, 0.2232282, 0.2862166, 0.3391383, 0.3840670, 0.4226592 };
+
+	/**
+	 * Histogram buckets hold one count each up to 2^HISTOGRAM_EXACT_BITS above the lowest count,
+	 * and after that each bucket is 1/2^(HISTOGRAM_EXACT_BITS-1) of its count wide
+	 */
+	private static final int HISTOGRAM_EXACT_BITS = 12;
+	private static final int HISTOGRAM_BUCKETS = (30 - HISTOGRAM_EXACT_BITS + 2) << (HISTOGRAM_EXACT_BITS - 1);
+
+	/**
+	 * Size of the tiles which are handed out to worker threads
+	 */
+	private static final int TILE_WIDTH = 64;
+	private static final int TILE_HEIGHT = 16;
+
+	private int width, height;
+
+	private int[] iterBuffer;
+	private float[] zCacheRe, zCacheIm;
+	private float[] checkCacheRe, checkCacheIm;
+	private int[] iterHistogram = new int[HISTOGRAM_BUCKETS];
+	private int[] paletteIndexes = new int[HISTOGRAM_BUCKETS];
+	private int itersLimit = ITERS_LIMIT_DEFAULT;
+
+	private int[] paletteColors;
+	private int paletteSetColor;
+	private int[] pixels;
+
+	private Function cacheFunction;
+	private float cacheOffsetRe, cacheOffsetIm, cacheZoom;
+	private int cacheMaxIters;
+	private int activeCount;
+	private final AtomicInteger cancelGeneration = new AtomicInteger(0);
+
+	private ExecutorService executor;
+	private int threads;
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#allocate(int, int)
+	 */
+	@Override
+	public boolean allocate(int width, int height) {
+		if (!resize(width, height))
+			return false;
+
+		return setThreadCount(0);
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#resize(int, int)
+	 */
+	@Override
+	public boolean resize(int width, int height) {
+		try {
+			this.iterBuffer = new int[width * height];
+			this.zCacheRe = new float[width * height];
+			this.zCacheIm = new float[width * height];
+			this.checkCacheRe = new float[width * height];
+			this.checkCacheIm = new float[width * height];
+			this.pixels = new int[width * height];
+		}
+		catch (OutOfMemoryError ex) {
+			return false;
+		}
+
+		this.width = width;
+		this.height = height;
+		this.cacheMaxIters = 0;
+		this.activeCount = 0;
+		return true;
+	}
+
+	/**
+	 * Iterates with the offset rounded to double precision, which is as much as this renderer uses
+	 * @see com.ijuru.refract.renderer.Renderer#iterate(Function, BigComplex, double, int)
+	 */
+	@Override
+	public int iterate(Function function, BigComplex offset, double zoom, int iters) {
+		return iterate(function, offset.toComplex(), zoom, iters);
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#iterate(Function, Complex, double, int)
+	 */
+	@Override
+	public int iterate(Function function, Complex offset, double zoom, int iters) {
+		// Narrow parameters to the precision used for iterating
+		final float offsetRe = (float)offset.re;
+		final float offsetIm = (float)offset.im;
+		final float zoomF = (float)zoom;
+
+		// Has the the renderer been iterated previously with these parameters?
+		final boolean useCache = function.equals(cacheFunction) && offsetRe == cacheOffsetRe && offsetIm == cacheOffsetIm && zoomF == cacheZoom && cacheMaxIters > 0;
+
+		// Increment or reset max-iters depending on whether we'll be using the cache
+		final long newMaxIters = useCache ? ((long)cacheMaxIters + iters) : iters;
+
+		// Only iterate if we haven't gone beyond max iters
+		if (newMaxIters <= itersLimit) {
+			final int maxIters = (int)newMaxIters;
+			final Function func = function;
+			final int tilesX = (width + TILE_WIDTH - 1) / TILE_WIDTH;
+			final int tilesY = (height + TILE_HEIGHT - 1) / TILE_HEIGHT;
+			final int tiles = tilesX * tilesY;
+			final AtomicInteger nextTile = new AtomicInteger(0);
+			final AtomicInteger active = new AtomicInteger(0);
+			final int generation = cancelGeneration.get();
+
+			// Each worker keeps taking the next tile until there are none left
+			List<Callable<Void>> workers = new ArrayList<Callable<Void>>(threads);
+			for (int w = 0; w < threads; ++w) {
+				workers.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						int tile;
+						while ((tile = nextTile.getAndIncrement()) < tiles && cancelGeneration.get() == generation) {
+							int x1 = (tile % tilesX) * TILE_WIDTH;
+							int y1 = (tile / tilesX) * TILE_HEIGHT;
+							int x2 = Math.min(x1 + TILE_WIDTH, width);
+							int y2 = Math.min(y1 + TILE_HEIGHT, height);
+
+							active.addAndGet(iterateTile(func, offsetRe, offsetIm, zoomF, maxIters, useCache, x1, y1, x2, y2));
+						}
+						return null;
+					}
+				});
+			}
+
+			try {
+				executor.invokeAll(workers);
+			}
+			catch (InterruptedException ex) {
+				// Leave the cache in a state that forces a fresh render next time
+				cacheMaxIters = 0;
+				Thread.currentThread().interrupt();
+				return 0;
+			}
+
+			// Tiles are left at different iterations if cancelled, so the cache can't be used
+			if (cancelGeneration.get() != generation) {
+				cacheMaxIters = 0;
+				return 0;
+			}
+
+			// Update cache status
+			cacheMaxIters = maxIters;
+			activeCount = active.get();
+			cacheFunction = function;
+			cacheOffsetRe = offsetRe;
+			cacheOffsetIm = offsetIm;
+			cacheZoom = zoomF;
+		}
+
+		return cacheMaxIters;
+	}
+
+	/**
+	 * Iterates a rectangular tile of the renderer
+	 * @param function the function
+	 * @param offsetRe the real component of the offset
+	 * @param offsetIm the imaginary component of the offset
+	 * @param zoom the zoom factor
+	 * @param maxIters the iteration limit
+	 * @param useCache whether to refine the previous iteration
+	 * @param x1 the left of the tile
+	 * @param y1 the top of the tile
+	 * @param x2 the right of the tile (exclusive)
+	 * @param y2 the bottom of the tile (exclusive)
+	 * @return the number of pixels in the tile which are still active
+	 */
+	private int iterateTile(Function function, float offsetRe, float offsetIm, float zoom, int maxIters, boolean useCache, int x1, int y1, int x2, int y2) {
+		final int halfCx = width / 2;
+		final int halfCy = height / 2;
+		final float invZoom = 1 / zoom;
+		final float periodTolerance = PERIOD_TOLERANCE * invZoom;
+		final float periodTolerance2 = periodTolerance * periodTolerance;
+		final int degree = function.getDegree();
+		final boolean julia = function.isJulia();
+		final float kr = (float)function.getK().re;
+		final float ki = (float)function.getK().im;
+		final int cacheMaxIters = this.cacheMaxIters;
+		final int[] iterBuffer = this.iterBuffer;
+		final float[] zCacheRe = this.zCacheRe;
+		final float[] zCacheIm = this.zCacheIm;
+		final float[] checkCacheRe = this.checkCacheRe;
+		final float[] checkCacheIm = this.checkCacheIm;
+		int active = 0;
+
+		for (int y = y1; y < y2; ++y) {
+			for (int x = x1, index = y * width + x1; x < x2; ++x, ++index) {
+				int iters = 0;
+				float zr = 0, zi = 0, checkR = 0, checkI = 0;
+
+				// Only refine locations that reached maximum iterations previously
+				if (useCache) {
+					iters = iterBuffer[index];
+					if (iters != cacheMaxIters)
+						continue;
+
+					zr = zCacheRe[index];
+					zi = zCacheIm[index];
+					checkR = checkCacheRe[index];
+					checkI = checkCacheIm[index];
+				}
+
+				// Convert from pixel space to complex space
+				float cr = (x - halfCx) * invZoom + offsetRe;
+				float ci = (halfCy - y) * invZoom + offsetIm;
+
+				// If not doing refinement then initialize values
+				if (!useCache) {
+					// Skip pixels which are known to be in the set
+					if (isInterior(degree, julia, cr, ci)) {
+						iterBuffer[index] = ITERC_SET;
+						continue;
+					}
+
+					iters = 0;
+					zr = checkR = cr;
+					zi = checkI = ci;
+				}
+
+				// Julia sets add the same constant to every pixel
+				final float ar = julia ? kr : cr;
+				final float ai = julia ? ki : ci;
+
+				// Pre-calculate squares
+				float zr2 = zr * zr;
+				float zi2 = zi * zi;
+
+				while ((zr2 + zi2 < 4) && iters < maxIters) {
+					switch (degree) {
+					case 2:
+						zi = 2 * zr * zi + ai;
+						zr = zr2 - zi2 + ar;
+						break;
+					case 3:
+						zi = zi * (3 * zr2 - zi2) + ai;
+						zr = zr * (zr2 - 3 * zi2) + ar;
+						break;
+					case 4:
+						zi = 4 * zr * zi * (zr2 - zi2) + ai;
+						zr = zr2 * zr2 - 6 * zr2 * zi2 + zi2 * zi2 + ar;
+						break;
+					default:
+						// Raise z to the degree by squaring
+						float sr = zr2 - zi2, si = 2 * zr * zi;
+						float rr = zr, ri = zi;
+						boolean started = (degree & 1) != 0;
+
+						for (int bit = 2; bit <= degree; bit <<= 1) {
+							if (bit > 2) {
+								float t = sr * sr - si * si;
+								si = 2 * sr * si;
+								sr = t;
+							}
+							if ((degree & bit) != 0) {
+								if (started) {
+									float t = rr * sr - ri * si;
+									ri = rr * si + ri * sr;
+									rr = t;
+								}
+								else {
+									rr = sr;
+									ri = si;
+								}
+								started = true;
+							}
+						}
+
+						zr = rr + ar;
+						zi = ri + ai;
+						break;
+					}
+					zr2 = zr * zr;
+					zi2 = zi * zi;
+					++iters;
+
+					// Has the orbit come back to its check point?
+					float dr = zr - checkR;
+					float di = zi - checkI;
+					if (dr * dr + di * di < periodTolerance2) {
+						iters = ITERC_SET;
+						break;
+					}
+
+					// Moving the check point at powers of two finds cycles of any period
+					if ((iters & (iters - 1)) == 0) {
+						checkR = zr;
+						checkI = zi;
+					}
+				}
+
+				// Store result and z for possible refinement in next frame
+				iterBuffer[index] = iters;
+				zCacheRe[index] = zr;
+				zCacheIm[index] = zi;
+				checkCacheRe[index] = checkR;
+				checkCacheIm[index] = checkI;
+
+				if (iters == maxIters)
+					++active;
+			}
+		}
+		return active;
+	}
+
+	/**
+	 * Checks whether c is known to be in the set without iterating, i.e. it lies in the main cardioid
+	 * or period-2 bulb of the Mandelbrot set, or for higher powers the largest disc about the origin
+	 * inside the main component. Julia sets have no such region that holds for every k.
+	 * @param degree the degree of the function
+	 * @param julia whether the function is a Julia set
+	 * @param cr the real component of c
+	 * @param ci the imaginary component of c
+	 * @return true if c is in the set
+	 */
+	private static boolean isInterior(int degree, boolean julia, double cr, double ci) {
+		if (julia)
+			return false;
+
+		if (degree == 2) {
+			double ci2 = ci * ci;
+			double xr = cr - 0.25;
+			double q = xr * xr + ci2;
+			double xb = cr + 1;
+			return (q * (q + xr) <= 0.25 * ci2) || (xb * xb + ci2 <= 0.0625);
+		}
+		return cr * cr + ci * ci <= INTERIOR_RADII_2[degree];
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#cancel()
+	 */
+	@Override
+	public void cancel() {
+		cancelGeneration.incrementAndGet();
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getActiveCount()
+	 */
+	@Override
+	public int getActiveCount() {
+		return activeCount;
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getPendingCount()
+	 */
+	@Override
+	public int getPendingCount() {
+		// Fresh renders iterate every pixel in their first frame
+		return 0;
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#render(Bitmap, Mapping)
+	 */
+	@Override
+	public boolean render(Bitmap bitmap, Mapping mapping) {
+		if (!render(pixels, width, mapping))
+			return false;
+
+		bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+		return true;
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getChangedBounds(Rect)
+	 */
+	@Override
+	public void getChangedBounds(Rect rect) {
+		// Every pixel is colored again by each render
+		rect.set(0, 0, width, height);
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getColoredCount()
+	 */
+	@Override
+	public int getColoredCount() {
+		// Every pixel is colored again by each render
+		return width * height;
+	}
+
+	/**
+	 * Renders a fractal to the given ARGB pixel buffer
+	 * @param pixels the pixel buffer
+	 * @param stride the number of pixels per row of the buffer
+	 * @param mapping the palette mapping mode
+	 * @return true if successful
+	 */
+	public boolean render(int[] pixels, int stride, Mapping mapping) {
+		// Number of iters to be considered in the set
+		final int maxIters = cacheMaxIters;
+
+		// Can't render if renderer hasn't been iterated or has no palette
+		if (maxIters == 0 || paletteColors == null)
+			return false;
+
+		// Palette indexes are looked up by the bucket of each count above the lowest
+		final int minIters = findMinIters();
+		final int buckets = (minIters < maxIters) ? histogramBucket(maxIters - 1 - minIters) + 1 : 0;
+
+		final int palSize = paletteColors.length;
+		final int palIndexMax = palSize - 1;
+		final int[] indexes = paletteIndexes;
+
+		switch (mapping) {
+		case REPEAT:
+			for (int b = 0; b < buckets; ++b)
+				indexes[b] = (minIters + histogramBucketStart(b)) % palSize;
+			break;
+		case CLAMP:
+			for (int b = 0; b < buckets; ++b)
+				indexes[b] = Math.min(minIters + histogramBucketStart(b), palIndexMax);
+			break;
+		case SCALE_GLOBAL:
+			for (int b = 0; b < buckets; ++b)
+				indexes[b] = (int)((long)palSize * (minIters + histogramBucketStart(b)) / maxIters);
+			break;
+		case SCALE_AUTO: {
+				calcHistogram(minIters, buckets);
+				int range = findHistogramMax(minIters, buckets) - minIters;
+
+				if (range > 0) {
+					for (int b = 0; b < buckets; ++b)
+						indexes[b] = (int)Math.min((long)palSize * histogramBucketStart(b) / range, palIndexMax);
+				}
+				else
+					Arrays.fill(indexes, 0, buckets, 0);
+				break;
+			}
+		case HISTOGRAM: {
+				final int[] histo = calcHistogram(minIters, buckets);
+				long total = calcHistogramTotal(buckets);
+
+				long palItemSize = total / palSize;
+				long histoAcc = 0;
+
+				// Only calculate if there are enough non-set pixels to spread over the palette
+				if (palItemSize > 0) {
+					for (int b = 0; b < buckets; ++b) {
+						histoAcc += histo[b];
+						indexes[b] = (int)Math.min(histoAcc / palItemSize, palIndexMax);
+					}
+				}
+				else
+					Arrays.fill(indexes, 0, buckets, 0);
+				break;
+			}
+		}
+
+		// Fill pixel buffer based on palette indexes
+		for (int y = 0, index = 0; y < height; ++y) {
+			int line = y * stride;
+			for (int x = 0; x < width; ++x, ++index) {
+				int iterc = iterBuffer[index];
+				pixels[line + x] = (iterc >= maxIters) ? paletteSetColor : paletteColors[indexes[histogramBucket(iterc - minIters)]];
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the histogram bucket of an iteration count given as its offset from the lowest count
+	 * @param offset the offset
+	 * @return the bucket
+	 */
+	private static int histogramBucket(int offset) {
+		if (offset < (1 << HISTOGRAM_EXACT_BITS))
+			return offset;
+
+		// Keep the top bits of the offset, and count how many were dropped
+		int shift = 32 - Integer.numberOfLeadingZeros(offset) - HISTOGRAM_EXACT_BITS;
+		return ((shift + 1) << (HISTOGRAM_EXACT_BITS - 1)) + (offset >> shift) - (1 << (HISTOGRAM_EXACT_BITS - 1));
+	}
+
+	/**
+	 * Gets the lowest offset from the lowest count which falls in the given histogram bucket
+	 * @param bucket the bucket
+	 * @return the offset
+	 */
+	private static int histogramBucketStart(int bucket) {
+		if (bucket < (1 << HISTOGRAM_EXACT_BITS))
+			return bucket;
+
+		int shift = (bucket >> (HISTOGRAM_EXACT_BITS - 1)) - 1;
+		return ((bucket & ((1 << (HISTOGRAM_EXACT_BITS - 1)) - 1)) | (1 << (HISTOGRAM_EXACT_BITS - 1))) << shift;
+	}
+
+	/**
+	 * Finds the lowest iteration count of pixels which have escaped
+	 * @return the minimum, or the max iterations if no pixels have escaped
+	 */
+	private int findMinIters() {
+		int min = cacheMaxIters;
+		for (int i = 0; i < width * height; ++i)
+			min = Math.min(min, iterBuffer[i]);
+		return min;
+	}
+
+	/**
+	 * Calculates a histogram of the iteration counts of pixels which have escaped, bucketed by how
+	 * far above the lowest they are
+	 * @param minIters the lowest iteration count
+	 * @param buckets the number of buckets
+	 * @return the histogram
+	 */
+	private int[] calcHistogram(int minIters, int buckets) {
+		final int[] histo = iterHistogram;
+
+		// Zeroize bucket counts
+		for (int b = 0; b < buckets; ++b)
+			histo[b] = 0;
+
+		// Accumulate iter counts, not including pixels in the set
+		for (int i = 0; i < width * height; ++i) {
+			if (iterBuffer[i] < cacheMaxIters)
+				++histo[histogramBucket(iterBuffer[i] - minIters)];
+		}
+
+		return histo;
+	}
+
+	/**
+	 * Finds the iteration value that covers all but top 0.5% of non-set values
+	 * @param minIters the lowest iteration count
+	 * @param buckets the number of buckets
+	 * @return the maximum
+	 */
+	private int findHistogramMax(int minIters, int buckets) {
+		int cumulHisto = 0;
+		int threshold = (5 * width * height) / 1000;
+
+		for (int b = buckets - 1; b >= 0; --b) {
+			cumulHisto += iterHistogram[b];
+			if (cumulHisto >= threshold)
+				return minIters + histogramBucketStart(b);
+		}
+		return minIters;
+	}
+
+	/**
+	 * Calculates the total of the histogram, not including pixels in the set
+	 * @param buckets the number of buckets
+	 * @return the total
+	 */
+	private long calcHistogramTotal(int buckets) {
+		long total = 0;
+		for (int b = 0; b < buckets; ++b)
+			total += iterHistogram[b];
+		return total;
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#free()
+	 */
+	@Override
+	public void free() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+
+		iterBuffer = null;
+		zCacheRe = null;
+		zCacheIm = null;
+		checkCacheRe = null;
+		checkCacheIm = null;
+		pixels = null;
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getWidth()
+	 */
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getHeight()
+	 */
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#setPalette(Palette, int, float, int)
+	 */
+	@Override
+	public void setPalette(Palette palette, int size, float bias, int setColor) {
+		int[] colors = palette.getColors();
+		float[] anchors = palette.getAnchors();
+		int points = colors.length;
+		int index = -1;
+
+		paletteColors = new int[size];
+		paletteSetColor = setColor | 0xFF000000;
+
+		// Fill palette with a linear gradient
+		for (int i = 0; i < size; ++i) {
+			float ipos = (float)i / (size - 1); // palette index 0.0...1.0
+
+			// Apply bias as power to emphasize low or high
+			ipos = (float)Math.pow(ipos, bias);
+
+			if ((index < points - 1) && (ipos > anchors[index + 1]))
+				++index;
+
+			if (index < 0) {
+				paletteColors[i] = colors[0] | 0xFF000000;
+			}
+			else if (index >= points - 1) {
+				paletteColors[i] = colors[points - 1] | 0xFF000000;
+			}
+			else {
+				float segmentMin = anchors[index];
+				float segmentMax = anchors[index + 1];
+				float weight2 = (ipos - segmentMin) / (segmentMax - segmentMin);
+				float weight1 = 1.0f - weight2;
+
+				int c1 = colors[index], c2 = colors[index + 1];
+				int r = (int)(weight1 * ((c1 >> 16) & 0xFF) + weight2 * ((c2 >> 16) & 0xFF));
+				int g = (int)(weight1 * ((c1 >> 8) & 0xFF) + weight2 * ((c2 >> 8) & 0xFF));
+				int b = (int)(weight1 * (c1 & 0xFF) + weight2 * (c2 & 0xFF));
+
+				paletteColors[i] = 0xFF000000 | ((r & 0xFF) << 16) | ((g & 0xFF) << 8) | (b & 0xFF);
+			}
+		}
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#setThreadCount(int)
+	 */
+	@Override
+	public boolean setThreadCount(int threads) {
+		if (threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+
+		if (executor != null)
+			executor.shutdown();
+
+		this.threads = threads;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				// Workers mustn't keep the process alive
+				Thread thread = new Thread(runnable, "JavaRenderer worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getThreadCount()
+	 */
+	@Override
+	public int getThreadCount() {
+		return threads;
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#setStrategy(Strategy)
+	 */
+	@Override
+	public boolean setStrategy(Strategy strategy) {
+		// Every pixel is always iterated
+		return strategy == Strategy.PIXELS;
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getStrategy()
+	 */
+	@Override
+	public Strategy getStrategy() {
+		return Strategy.PIXELS;
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#setMaxIterations(int)
+	 */
+	@Override
+	public void setMaxIterations(int maxIters) {
+		itersLimit = Math.max(0, Math.min(maxIters, ITERC_MAX));
+	}
+
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getMaxIterations()
+	 */
+	@Override
+	public int getMaxIterations() {
+		return itersLimit;
+	}
+}
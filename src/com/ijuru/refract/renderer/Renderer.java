@@ -21,6 +21,7 @@ package com.ijuru.refract.renderer;
 
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 
 /**
  * Interface of a fractal renderer
@@ -50,14 +51,58 @@ public interface Renderer {
 	 * @return the overall number of iterations performed on the current render
 	 */
 	public int iterate(Function function, Complex offset, double zoom, int iters);
+	
+	/**
+	 * Iterates the renderer with an exact offset, for zooms too deep for a double offset
+	 * @param function the function
+	 * @param offset the exact offset in complex space
+	 * @param zoom the zoom factor
+	 * @param iters the number of iterations to perform
+	 * @return the overall number of iterations performed on the current render
+	 */
+	public int iterate(Function function, BigComplex offset, double zoom, int iters);
+	
+	/**
+	 * Cancels any iteration in progress on another thread, which stops as soon as it can and
+	 * returns the number of iterations it reached, or zero if the render can't be refined further
+	 */
+	public void cancel();
 
 	/**
-	 * Renders a fractal to the given bitmap
+	 * Gets the number of pixels which are still being iterated, i.e. those which have neither
+	 * escaped nor been found to be in the set
+	 * @return the number of pixels, which is zero once the render has converged
+	 */
+	public int getActiveCount();
+
+	/**
+	 * Gets the number of active pixels which are still waiting to be iterated from scratch. Frames
+	 * which iterate these don't increase the overall number of iterations.
+	 * @return the number of pixels
+	 */
+	public int getPendingCount();
+
+	/**
+	 * Renders a fractal to the given bitmap. Only pixels which have changed since the render before
+	 * last may be written, so callers must alternate between the same two bitmaps, or always use one.
 	 * @param bitmap the bitmap to render to
 	 * @param mapping the palette mapping mode
 	 * @return true if successful
 	 */
 	public boolean render(Bitmap bitmap, Mapping mapping);
+	
+	/**
+	 * Gets the bounds of the pixels whose colors were changed by the last render
+	 * @param rect the rectangle to set, which is set empty if none changed
+	 */
+	public void getChangedBounds(Rect rect);
+	
+	/**
+	 * Gets the number of pixels which the last render colored, which can be fewer than all of them
+	 * if it only colors those which have changed
+	 * @return the number of pixels
+	 */
+	public int getColoredCount();
 
 	/**
 	 * Frees resources
@@ -83,4 +128,42 @@ public interface Renderer {
 	 * @param the RGB color of the set
 	 */
 	public void setPalette(Palette palette, int size, float bias, int setColor);
+	
+	/**
+	 * Sets the number of threads used for iterating
+	 * @param threads the number of threads, or zero for one per processor core
+	 * @return true if successful
+	 */
+	public boolean setThreadCount(int threads);
+	
+	/**
+	 * Gets the number of threads used for iterating
+	 * @return the number of threads
+	 */
+	public int getThreadCount();
+	
+	/**
+	 * Sets the strategy for choosing which pixels of fresh renders are iterated
+	 * @param strategy the strategy
+	 * @return true if the renderer supports the strategy
+	 */
+	public boolean setStrategy(Strategy strategy);
+	
+	/**
+	 * Gets the strategy for choosing which pixels of fresh renders are iterated
+	 * @return the strategy
+	 */
+	public Strategy getStrategy();
+	
+	/**
+	 * Sets the max number of iterations that a render can reach, beyond which further iterations are ignored
+	 * @param maxIters the max number of iterations
+	 */
+	public void setMaxIterations(int maxIters);
+	
+	/**
+	 * Gets the max number of iterations that a render can reach
+	 * @return the max number of iterations
+	 */
+	public int getMaxIterations();
 }
\ No newline at end of file
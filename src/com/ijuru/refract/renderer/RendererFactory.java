@@ -27,10 +27,10 @@ import com.ijuru.refract.renderer.jni.NativeRenderer;
 public class RendererFactory {
 	
 	/**
-	 * Creates a renderer
+	 * Creates a renderer, using the native implementation if its library is available
 	 * @return the renderer
 	 */
 	public static Renderer createRenderer() {
-		return new NativeRenderer();
+		return NativeRenderer.isAvailable() ? new NativeRenderer() : new JavaRenderer();
 	}
 }
@@ -24,18 +24,32 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.math.BigDecimal;
 
 import android.os.Parcel;
 import android.os.Parcelable;
 
 /**
- * Renderer parameters
+ * Renderer parameters. The offset is kept to arbitrary precision so that deep zoom locations
+ * survive being bookmarked or saved, whereas the zoom is a double which has exponent range to spare.
+ * Parameters are immutable so they can be handed between threads, and are changed by making new ones.
  */
 public class RendererParams implements Parcelable {
 	
-	private Function function;
-	private Complex offset;
-	private double zoom;
+	/**
+	 * Decimal places kept in the offset beyond those needed to resolve a pixel
+	 */
+	private static final int OFFSET_GUARD_DIGITS = 6;
+	
+	/**
+	 * Scale of zoom times offset magnitude beyond which a double offset can't resolve pixels
+	 * accurately, i.e. 2^43 which leaves 10 bits of a double's mantissa to spare
+	 */
+	private static final double DOUBLE_OFFSET_LIMIT = 0x1p43;
+	
+	private final Function function;
+	private final BigComplex offset;
+	private final double zoom;
 	
 	/**
 	 * Constructs new render parameters
@@ -43,19 +57,29 @@ public class RendererParams implements Parcelable {
 	 * @param offset the offset
 	 * @param zoom the zoom
 	 */
-	public RendererParams(Function function, Complex offset, double zoom) {
+	public RendererParams(Function function, BigComplex offset, double zoom) {
 		this.function = function;
 		this.offset = offset;
 		this.zoom = zoom;
 	}
 	
+	/**
+	 * Constructs new render parameters
+	 * @param function the set function
+	 * @param offset the offset
+	 * @param zoom the zoom
+	 */
+	public RendererParams(Function function, Complex offset, double zoom) {
+		this(function, new BigComplex(offset), zoom);
+	}
+	
 	/**
 	 * Constructs new render parameters from a parcel
 	 * @param parcel the parcel
 	 */
 	public RendererParams(Parcel parcel) {
 		this.function = Function.parseString(parcel.readString());
-		this.offset = new Complex(parcel.readDouble(), parcel.readDouble());
+		this.offset = new BigComplex(new BigDecimal(parcel.readString()), new BigDecimal(parcel.readString()));
 		this.zoom = parcel.readDouble();
 	}
 
@@ -68,27 +92,67 @@ public class RendererParams implements Parcelable {
 	}
 	
 	/**
-	 * Sets the set function
+	 * Gets these parameters with a different set function
 	 * @param function the function
+	 * @return the parameters
 	 */
-	public void setFunction(Function function) {
-		this.function = function;
+	public RendererParams withFunction(Function function) {
+		return new RendererParams(function, offset, zoom);
 	}
 
 	/**
-	 * Gets the offset
+	 * Gets the offset rounded to double precision
 	 * @return the offset
 	 */
 	public Complex getOffset() {
+		return offset.toComplex();
+	}
+	
+	/**
+	 * Gets the exact offset
+	 * @return the offset
+	 */
+	public BigComplex getExactOffset() {
 		return offset;
 	}
 	
 	/**
-	 * Sets the offset
+	 * Gets these parameters with a different offset
 	 * @param offset the offset
+	 * @return the parameters
 	 */
-	public void setOffset(Complex offset) {
-		this.offset = offset;
+	public RendererParams withOffset(Complex offset) {
+		return new RendererParams(function, offset, zoom);
+	}
+	
+	/**
+	 * Gets these parameters with a different exact offset
+	 * @param offset the offset
+	 * @return the parameters
+	 */
+	public RendererParams withOffset(BigComplex offset) {
+		return new RendererParams(function, offset, zoom);
+	}
+	
+	/**
+	 * Gets these parameters with the offset moved, keeping only as many decimal places as the zoom
+	 * can resolve
+	 * @param delta the amount to move by
+	 * @return the parameters
+	 */
+	public RendererParams translate(Complex delta) {
+		int scale = Math.max((int)Math.ceil(Math.log10(zoom)), 0) + OFFSET_GUARD_DIGITS;
+		return new RendererParams(function, offset.add(delta, scale), zoom);
+	}
+	
+	/**
+	 * Gets whether the offset needs more than double precision at the current zoom
+	 * @return true if the exact offset should be used
+	 */
+	public boolean isDeep() {
+		Complex approx = offset.toComplex();
+		double magnitude = Math.max(Math.max(Math.abs(approx.re), Math.abs(approx.im)), 2.0);
+		return magnitude * zoom > DOUBLE_OFFSET_LIMIT;
 	}
 
 	/**
@@ -100,11 +164,12 @@ public class RendererParams implements Parcelable {
 	}
 	
 	/**
-	 * Sets the zoom
+	 * Gets these parameters with a different zoom
 	 * @param zoom the zoom
+	 * @return the parameters
 	 */
-	public void setZoom(double zoom) {
-		this.zoom = zoom;
+	public RendererParams withZoom(double zoom) {
+		return new RendererParams(function, offset, zoom);
 	}
 
 	/**
@@ -121,8 +186,8 @@ public class RendererParams implements Parcelable {
 	@Override
 	public void writeToParcel(Parcel parcel, int hint) {
 		parcel.writeString(function.toString());
-		parcel.writeDouble(offset.re);
-		parcel.writeDouble(offset.im);
+		parcel.writeString(offset.re.toString());
+		parcel.writeString(offset.im.toString());
 		parcel.writeDouble(zoom);
 	}
 	
@@ -147,7 +212,7 @@ public class RendererParams implements Parcelable {
 	public static RendererParams read(Reader reader) throws IOException {
 		BufferedReader in = new BufferedReader(reader);
 		Function function = Function.parseString(in.readLine());
-		Complex offset = Complex.parseComplex(in.readLine());
+		BigComplex offset = BigComplex.parseComplex(in.readLine());
 		double zoom = Double.parseDouble(in.readLine());
 		return new RendererParams(function, offset, zoom);
 	}
@@ -163,20 +228,12 @@ public class RendererParams implements Parcelable {
 		printer.println(zoom);
 	}
 	
-	/**
-	 * @see java.lang.Object#clone()
-	 */
-	@Override
-	public Object clone() {
-		return new RendererParams(function, offset, zoom);
-	}
-
 	/**
 	 * @see java.lang.Object#equals(Object)
 	 */
 	@Override
 	public boolean equals(Object obj) {
-		if (obj instanceof Complex) {
+		if (obj instanceof RendererParams) {
 			RendererParams p = (RendererParams)obj;
 			return function.equals(p.function) && offset.equals(p.offset) && zoom == p.zoom;
 		}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ * 
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ijuru.refract.renderer;
+
+/**
+ * Strategies for choosing which pixels of a fresh render are iterated
+ */
+public enum Strategy {
+	PIXELS,				// every pixel
+	SUBDIVIDE,			// only the borders of rectangles which turn out to be uniform
+	SUBDIVIDE_CHECKED;	// as above, but also counts pixels which differ from iterating them
+	
+	/**
+	 * Parses a strategy from a string
+	 * @param str the string to parse
+	 * @return the strategy or null
+	 */
+	public static Strategy parseString(String str) {
+		for (Strategy strategy : values()) {
+			if (strategy.name().equalsIgnoreCase(str))
+				return strategy;
+		}
+		return null;
+	}
+}
@@ -19,30 +19,320 @@
 
 package com.ijuru.refract.renderer.jni;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import com.ijuru.refract.renderer.BigComplex;
 import com.ijuru.refract.renderer.Complex;
 import com.ijuru.refract.renderer.Function;
 import com.ijuru.refract.renderer.Mapping;
 import com.ijuru.refract.renderer.Palette;
 import com.ijuru.refract.renderer.Renderer;
+import com.ijuru.refract.renderer.Strategy;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 
 /**
- * Native implementation of a fractal renderer
+ * Native implementation of a fractal renderer. Parameters and statistics are exchanged through a block of
+ * memory shared with the native renderer, so each call crosses into native code at most once and queries
+ * don't cross at all.
  */
 public class NativeRenderer implements Renderer {
 	
 	/**
-	 * Used by native code
+	 * Iteration count of pixels known to be in the set, in the iterations buffer
+	 */
+	public static final int ITERC_SET = 1 << 30;
+	
+	/**
+	 * Offsets of values in the shared block, which must match block_t in NativeRenderer.c
+	 */
+	private static final int BLOCK_OFFSET_RE = 0;
+	private static final int BLOCK_OFFSET_IM = 8;
+	private static final int BLOCK_ZOOM = 16;
+	private static final int BLOCK_K_RE = 24;
+	private static final int BLOCK_K_IM = 32;
+	private static final int BLOCK_DEGREE = 40;
+	private static final int BLOCK_JULIA = 44;
+	private static final int BLOCK_ITERS = 48;
+	private static final int BLOCK_MAX_ITERS = 52;
+	private static final int BLOCK_ACTIVE_COUNT = 56;
+	private static final int BLOCK_FILL_ERRORS = 60;
+	private static final int BLOCK_WIDTH = 64;
+	private static final int BLOCK_HEIGHT = 68;
+	private static final int BLOCK_THREADS = 72;
+	private static final int BLOCK_STRATEGY = 76;
+	private static final int BLOCK_ITERS_LIMIT = 80;
+	private static final int BLOCK_GENERATION = 84;
+	private static final int BLOCK_COLORED = 88;
+	private static final int BLOCK_CHANGED_LEFT = 92;
+	private static final int BLOCK_CHANGED_TOP = 96;
+	private static final int BLOCK_CHANGED_RIGHT = 100;
+	private static final int BLOCK_CHANGED_BOTTOM = 104;
+	private static final int BLOCK_PENDING_COUNT = 108;
+	private static final int BLOCK_SIZE = 112;
+	
+	private static final Strategy[] strategies = Strategy.values();
+	
+	private final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.nativeOrder());
+	
+	/**
+	 * Handle of the native renderer, or zero if it isn't allocated
+	 */
+	private volatile long renderer;
+	
+	/**
+	 * View of the native iterations buffer, or null until it's needed
+	 */
+	private IntBuffer iterations;
+	
+	private static boolean available;
+	
+	/**
+	 * Load the native library
+	 */
+	static {
+		try {
+			System.loadLibrary("refract");
+			available = true;
+		}
+		catch (UnsatisfiedLinkError ex) {
+			available = false;
+		}
+	}
+	
+	/**
+	 * Gets whether the native library could be loaded
+	 * @return true if native renderers can be used
+	 */
+	public static boolean isAvailable() {
+		return available;
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#allocate(int, int)
+	 */
+	@Override
+	public boolean allocate(int width, int height) {
+		iterations = null;
+		renderer = nativeAllocate(block, width, height);
+		return renderer != 0;
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#resize(int, int)
+	 */
+	@Override
+	public boolean resize(int width, int height) {
+		iterations = null;
+		return nativeResize(renderer, width, height);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#iterate(Function, Complex, double, int)
+	 */
+	@Override
+	public int iterate(Function function, Complex offset, double zoom, int iters) {
+		putParams(function, zoom, iters);
+		block.putDouble(BLOCK_OFFSET_RE, offset.re);
+		block.putDouble(BLOCK_OFFSET_IM, offset.im);
+		return nativeIterate(renderer);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#iterate(Function, BigComplex, double, int)
+	 */
+	@Override
+	public int iterate(Function function, BigComplex offset, double zoom, int iters) {
+		putParams(function, zoom, iters);
+		return nativeIterateExact(renderer, offset.re.toPlainString(), offset.im.toPlainString());
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#cancel()
+	 */
+	@Override
+	public void cancel() {
+		// May be called after the renderer has been freed
+		long handle = renderer;
+		if (handle != 0)
+			nativeCancel(handle);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getActiveCount()
+	 */
+	@Override
+	public int getActiveCount() {
+		return block.getInt(BLOCK_ACTIVE_COUNT);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getPendingCount()
+	 */
+	@Override
+	public int getPendingCount() {
+		return block.getInt(BLOCK_PENDING_COUNT);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#render(Bitmap, Mapping)
+	 */
+	@Override
+	public boolean render(Bitmap bitmap, Mapping mapping) {
+		return nativeRender(renderer, bitmap, mapping.ordinal());
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getChangedBounds(Rect)
+	 */
+	@Override
+	public void getChangedBounds(Rect rect) {
+		rect.set(block.getInt(BLOCK_CHANGED_LEFT), block.getInt(BLOCK_CHANGED_TOP), block.getInt(BLOCK_CHANGED_RIGHT), block.getInt(BLOCK_CHANGED_BOTTOM));
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#free()
+	 */
+	@Override
+	public void free() {
+		long handle = renderer;
+		renderer = 0;
+		iterations = null;
+		nativeFree(handle);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getWidth()
+	 */
+	@Override
+	public int getWidth() {
+		return block.getInt(BLOCK_WIDTH);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getHeight()
+	 */
+	@Override
+	public int getHeight() {
+		return block.getInt(BLOCK_HEIGHT);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#setPalette(Palette, int, float, int)
+	 */
+	@Override
+	public void setPalette(Palette palette, int size, float bias, int setColor) {
+		nativeSetPalette(renderer, palette.getColors(), palette.getAnchors(), size, bias, setColor);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#setThreadCount(int)
+	 */
+	@Override
+	public boolean setThreadCount(int threads) {
+		return nativeSetThreadCount(renderer, threads);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getThreadCount()
+	 */
+	@Override
+	public int getThreadCount() {
+		return block.getInt(BLOCK_THREADS);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#setStrategy(Strategy)
+	 */
+	@Override
+	public boolean setStrategy(Strategy strategy) {
+		nativeSetStrategy(renderer, strategy.ordinal());
+		return true;
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getStrategy()
+	 */
+	@Override
+	public Strategy getStrategy() {
+		return strategies[block.getInt(BLOCK_STRATEGY)];
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#setMaxIterations(int)
+	 */
+	@Override
+	public void setMaxIterations(int maxIters) {
+		nativeSetMaxIterations(renderer, maxIters);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getMaxIterations()
+	 */
+	@Override
+	public int getMaxIterations() {
+		return block.getInt(BLOCK_ITERS_LIMIT);
+	}
+	
+	/**
+	 * Gets a read-only view of the iteration count of each pixel, in rows from the top left, without
+	 * copying them. Counts of pixels in the set are ITERC_SET. The view must only be read on the thread
+	 * which iterates the renderer, and is invalid after the renderer is resized or freed.
+	 * @return the iterations buffer
+	 */
+	public IntBuffer getIterations() {
+		if (iterations == null) {
+			ByteBuffer buffer = nativeGetIterations(renderer);
+			if (buffer == null)
+				return null;
+			
+			iterations = buffer.order(ByteOrder.nativeOrder()).asIntBuffer().asReadOnlyBuffer();
+		}
+		return iterations.duplicate();
+	}
+	
+	/**
+	 * Gets the generation of the iterations buffer, which changes whenever its contents do, so that
+	 * anything computed from them can be reused until then
+	 * @return the generation
+	 */
+	public int getGeneration() {
+		return block.getInt(BLOCK_GENERATION);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.renderer.Renderer#getColoredCount()
+	 */
+	@Override
+	public int getColoredCount() {
+		return block.getInt(BLOCK_COLORED);
+	}
+	
+	/**
+	 * Writes the parameters common to both kinds of iteration into the shared block
 	 */
-	private long renderer;
+	private void putParams(Function function, double zoom, int iters) {
+		block.putDouble(BLOCK_K_RE, function.getK().re);
+		block.putDouble(BLOCK_K_IM, function.getK().im);
+		block.putInt(BLOCK_DEGREE, function.getDegree());
+		block.putInt(BLOCK_JULIA, function.isJulia() ? 1 : 0);
+		block.putDouble(BLOCK_ZOOM, zoom);
+		block.putInt(BLOCK_ITERS, iters);
+	}
 	
-	@Override public native boolean allocate(int width, int height);
-	@Override public native boolean resize(int width, int height);
-	@Override public native int iterate(Function function, Complex offset, double zoom, int iters);
-	@Override public native boolean render(Bitmap bitmap, Mapping mapping);
-	@Override public native void free();
-	@Override public native int getWidth();
-	@Override public native int getHeight();
-	@Override public native void setPalette(Palette palette, int size, float bias, int setColor);
+	private static native long nativeAllocate(ByteBuffer block, int width, int height);
+	private static native boolean nativeResize(long handle, int width, int height);
+	private static native int nativeIterate(long handle);
+	private static native int nativeIterateExact(long handle, String offsetRe, String offsetIm);
+	private static native void nativeCancel(long handle);
+	private static native ByteBuffer nativeGetIterations(long handle);
+	private static native boolean nativeRender(long handle, Bitmap bitmap, int mapping);
+	private static native void nativeFree(long handle);
+	private static native void nativeSetPalette(long handle, int[] colors, float[] anchors, int size, float bias, int setColor);
+	private static native boolean nativeSetThreadCount(long handle, int threads);
+	private static native void nativeSetStrategy(long handle, int strategy);
+	private static native void nativeSetMaxIterations(long handle, int maxIters);
 }
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ *
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.ui;
+
+/**
+ * Chooses how many iterations to perform each frame so that frames take a given time. Frame time is
+ * modelled as a fixed overhead for rendering and drawing, plus a cost for each iteration of each
+ * active pixel, both of which are smoothed over recent frames.
+ */
+public class IterationController {
+
+	/**
+	 * Weight of the latest frame in the smoothed estimates
+	 */
+	private static final double SMOOTHING = 0.3;
+
+	/**
+	 * Max factor by which the iteration count can grow from one frame to the next, in case the
+	 * estimates are off
+	 */
+	private static final int MAX_GROWTH = 2;
+
+	/**
+	 * Max iterations per frame
+	 */
+	private static final int MAX_ITERS = 1000000;
+
+	private int iters;
+	private double stepCost = -1; // nanoseconds per iteration of one pixel
+	private double overhead = 0; // nanoseconds per frame
+
+	/**
+	 * Creates a controller
+	 * @param initialIters the number of iterations per frame until there are frame timings
+	 */
+	public IterationController(int initialIters) {
+		this.iters = Math.max(1, initialIters);
+	}
+
+	/**
+	 * Calculates the number of iterations for the next frame
+	 * @param pixels the number of pixels which will be iterated
+	 * @param budget the target frame time (ms)
+	 * @return the number of iterations
+	 */
+	public int calcIterations(int pixels, long budget) {
+		// Keep the initial count until there's been a frame to measure
+		if (stepCost <= 0 || pixels <= 0)
+			return iters;
+
+		double available = Math.max(budget * 1000000.0 - overhead, 0);
+		double target = available / (stepCost * pixels);
+
+		iters = (int)Math.max(1, Math.min(target, Math.min((double)iters * MAX_GROWTH, MAX_ITERS)));
+		return iters;
+	}
+
+	/**
+	 * Records the timings of a frame
+	 * @param frameIters the number of iterations performed
+	 * @param pixels the number of pixels which were iterated
+	 * @param iterateTime the time spent iterating (ns)
+	 * @param frameTime the time of the whole frame (ns)
+	 */
+	public void recordFrame(int frameIters, int pixels, long iterateTime, long frameTime) {
+		if (frameIters <= 0 || pixels <= 0)
+			return;
+
+		double frameStepCost = (double)iterateTime / ((double)frameIters * pixels);
+		double frameOverhead = Math.max(frameTime - iterateTime, 0);
+
+		if (stepCost <= 0) {
+			stepCost = frameStepCost;
+			overhead = frameOverhead;
+		}
+		else {
+			stepCost += SMOOTHING * (frameStepCost - stepCost);
+			overhead += SMOOTHING * (frameOverhead - overhead);
+		}
+	}
+}
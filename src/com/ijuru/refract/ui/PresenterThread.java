@@ -0,0 +1,61 @@
+/**
+ * Copyright 2011 Rowan Seymour
+ *
+ * This file is part of Refract.
+ *
+ * Refract is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Refract is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Refract. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ijuru.refract.ui;
+
+/**
+ * Thread to draw completed renders to the screen, so that the renderer thread never waits for the
+ * display and the display never waits for the renderer
+ */
+public class PresenterThread extends Thread {
+
+	private RendererView view;
+	private boolean pending = true;
+
+	public PresenterThread(RendererView view) {
+		this.view = view;
+	}
+
+	@Override
+	public void run() {
+		while (!isInterrupted()) {
+			// Wait until there's something new to show
+			try {
+				synchronized (this) {
+					while (!pending)
+						wait();
+					pending = false;
+				}
+			}
+			catch (InterruptedException ex) {
+				break;
+			}
+
+			view.present();
+		}
+	}
+
+	/**
+	 * Requests that the view is drawn again. Requests made while drawing are combined into one more draw.
+	 */
+	public synchronized void requestPresent() {
+		pending = true;
+		notifyAll();
+	}
+}
@@ -32,6 +32,7 @@ public class RendererThread extends Thread {
 	private int updateNumber = 0;
 	private long beginTime = 0;
 	private long lastUpdateTime = 0;
+	private boolean woken = false;
 
 	public RendererThread(RendererView view) {
 		this.view = view;
@@ -41,8 +42,13 @@ public class RendererThread extends Thread {
 	public void run() {
 		beginTime = System.currentTimeMillis();
 		
-		while (!isInterrupted()) {				
-			view.update();
+		while (!isInterrupted()) {
+			// Changes from here on must wake us if the render is found to have converged
+			synchronized (this) {
+				woken = false;
+			}
+			
+			boolean active = view.update();
 			
 			// Record frame render time
 			long updateTime = System.currentTimeMillis();
@@ -50,9 +56,33 @@ public class RendererThread extends Thread {
 			frameTimes[updateNumber % STAT_FRAMES] = lastFrameTime;
 			lastUpdateTime = updateTime;
 			++updateNumber;
+			
+			// Wait for something to change rather than keep updating a converged render
+			if (!active) {
+				try {
+					synchronized (this) {
+						while (!woken)
+							wait();
+					}
+				}
+				catch (InterruptedException ex) {
+					break;
+				}
+				
+				// Time spent waiting isn't part of the next frame
+				lastUpdateTime = System.currentTimeMillis();
+			}
 		}
 	}
 	
+	/**
+	 * Wakes the thread if it's waiting for something to change, or stops it waiting after the current update
+	 */
+	public synchronized void wake() {
+		woken = true;
+		notifyAll();
+	}
+	
 	/**
 	 * Gets the last frame time
 	 * @return the last frame time (ms)
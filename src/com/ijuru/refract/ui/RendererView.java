@@ -29,12 +29,15 @@ import com.ijuru.refract.renderer.RendererListener;
 import com.ijuru.refract.renderer.RendererParams;
 import com.ijuru.refract.utils.Utils;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Bitmap.Config;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
@@ -46,20 +49,49 @@ import android.view.SurfaceView;
  */
 public class RendererView extends SurfaceView implements SurfaceHolder.Callback, MultiTouchGestureDetector.OnMultiTouchGestureListener {
 	
-	private Bitmap bitmap;
+	/**
+	 * Default frame time budgets (ms) while the user is navigating and otherwise
+	 */
+	public static final int DEF_NAVIGATING_BUDGET = 16;
+	public static final int DEF_IDLE_BUDGET = 100;
+	
+	/**
+	 * Time (ms) after the last gesture for which the user is still considered to be navigating
+	 */
+	private static final long NAVIGATION_SETTLE_TIME = 1000;
+	
 	private Renderer renderer;
 	private RendererThread rendererThread;
+	private PresenterThread presenterThread;
 	private RendererListener listener;
+	
+	// Renders are made in the back bitmap and swapped to the front to be shown. Only the bounds of
+	// what has changed since the front bitmap was last shown are drawn again, unless all of it must be.
+	private final Object buffersLock = new Object();
+	private Bitmap frontBitmap, backBitmap;
+	private RendererParams frontParams;
+	private final Rect changedBounds = new Rect();
+	private boolean redrawAll = true;
+	private final Rect renderedBounds = new Rect();
+	private final Rect presentBounds = new Rect();
 
 	// Rendering parameters
-	private RendererParams params = new RendererParams(Function.MANDELBROT, Complex.ORIGIN, 200);
+	private final AtomicReference<RendererParams> params = new AtomicReference<RendererParams>(new RendererParams(Function.MANDELBROT, Complex.ORIGIN, 200));
 	private int itersPerFrame = 5;
 	private Mapping paletteMapping;
+	
+	// For choosing iterations per frame
+	private IterationController iterationController = new IterationController(itersPerFrame);
+	private int navigatingBudget = DEF_NAVIGATING_BUDGET;
+	private int idleBudget = DEF_IDLE_BUDGET;
+	private int renderedIters;
+	private RendererParams iteratedParams;
 
 	// For panning and zooming
 	private boolean navigationEnabled;
 	private MultiTouchGestureDetector navigationDetector;
-	private RendererParams bitmapParams;
+	private PointF panRemainder = new PointF();
+	private volatile long lastNavigationTime;
 	
 	/**
 	 * Constructs a renderer view whose renderer scales it's internal storage with the view
@@ -89,8 +121,8 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 		int rendererWidth = getDesiredRendererWidth(getWidth());
 		int rendererHeight = getDesiredRendererHeight(getHeight());
 		
-		params.setZoom(getWidth() / 2);
-		bitmap = Bitmap.createBitmap(rendererWidth, rendererHeight, Config.ARGB_8888);
+		params.set(params.get().withZoom(getWidth() / 2));
+		createBitmaps(rendererWidth, rendererHeight);
 		renderer = RendererFactory.createRenderer();
 		
 		// Allocate resources for renderer
@@ -103,9 +135,11 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 		if (listener != null)
 			listener.onRendererCreated(this, renderer);
 		
-		// Start renderer thread
+		// Start renderer and presenter threads
 		rendererThread = new RendererThread(this);
 		rendererThread.start();
+		presenterThread = new PresenterThread(this);
+		presenterThread.start();
 	}
 
 	@Override
@@ -113,10 +147,40 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 		int rendererWidth = getDesiredRendererWidth(width);
 		int rendererHeight = getDesiredRendererHeight(height);
 		
-		// Reallocate renderer and off-screen bitmap only if size has changed 
+		// Reallocate renderer and off-screen bitmaps only if size has changed 
 		if (renderer.getWidth() != rendererWidth || renderer.getHeight() != rendererHeight) {
-			renderer.resize(width, height);
-			bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+			// Renderer thread mustn't be using the renderer or back bitmap meanwhile
+			stopRendering();
+			renderer.resize(rendererWidth, rendererHeight);
+			createBitmaps(rendererWidth, rendererHeight);
+			iteratedParams = null;
+			
+			rendererThread = new RendererThread(this);
+			rendererThread.start();
+			presenterThread = new PresenterThread(this);
+			presenterThread.start();
+		}
+		
+		// The surface's contents may have been lost
+		synchronized (buffersLock) {
+			redrawAll = true;
+		}
+		
+		requestUpdate();
+		requestPresent();
+	}
+	
+	/**
+	 * Creates the front and back bitmaps
+	 * @param width the width
+	 * @param height the height
+	 */
+	private void createBitmaps(int width, int height) {
+		synchronized (buffersLock) {
+			frontBitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+			backBitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+			frontParams = null;
+			redrawAll = true;
 		}
 	}
 	
@@ -134,29 +198,120 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 	}
 	
 	/**
-	 * Updates the renderer
+	 * Updates the renderer, rendering into the back bitmap which is then swapped to the front
+	 * @return false if the render has converged or the user is panning/zooming, so there's nothing to
+	 *         update until something changes
 	 */
-	public void update() {	
-		// Only iterate if we're not panning/zooming
-		if (navigationDetector == null || !navigationDetector.isInProgress()) {
-			
-			// Copy params so that we know exactly what params have been iterated
-			bitmapParams = (RendererParams)params.clone();
-			int iters = renderer.iterate(bitmapParams.getFunction(), bitmapParams.getOffset(), bitmapParams.getZoom(), itersPerFrame);
-			
-			if (listener != null)
-				listener.onRendererIterated(this, renderer, iters);
+	public boolean update() {	
+		long frameStart = System.nanoTime();
+		
+		// Only iterate if we're not panning/zooming, in which case the presenter shows the last render
+		// moved and scaled, and the end of the gesture wakes us again
+		if (navigationDetector != null && navigationDetector.isInProgress())
+			return false;
+		
+		// Params are never modified once published so we know exactly what params have been iterated
+		RendererParams iterParams = params.get();
+		
+		// A change of params means every pixel needs iterating, otherwise only those still active
+		boolean fresh = !iterParams.equals(iteratedParams);
+		iteratedParams = iterParams;
+		
+		// Frames which iterate pending pixels from scratch don't increase the reached iterations
+		boolean pending = !fresh && renderer.getPendingCount() > 0;
+		
+		// Choose iterations to fit the frame budget, but not more than the renderer can reach as it
+		// won't iterate at all if asked to go beyond its max iterations. Pending pixels only catch up
+		// with the reached iterations.
+		int framePixels = fresh ? (renderer.getWidth() * renderer.getHeight()) : renderer.getActiveCount();
+		int frameIters = iterationController.calcIterations(framePixels, isNavigating() ? navigatingBudget : idleBudget);
+		int reachedIters = fresh ? 0 : renderedIters;
+		if (!pending)
+			frameIters = Math.min(frameIters, renderer.getMaxIterations() - reachedIters);
+		frameIters = Math.max(1, frameIters);
+		
+		// Only pass the exact offset if doubles can't resolve it
+		long iterateStart = System.nanoTime();
+		int iters;
+		if (iterParams.isDeep())
+			iters = renderer.iterate(iterParams.getFunction(), iterParams.getExactOffset(), iterParams.getZoom(), frameIters);
+		else
+			iters = renderer.iterate(iterParams.getFunction(), iterParams.getOffset(), iterParams.getZoom(), frameIters);
+		long iterateTime = System.nanoTime() - iterateStart;
+		
+		renderedIters = iters;
+		
+		if (listener != null)
+			listener.onRendererIterated(this, renderer, iters);
+		
+		// Render into the back bitmap and swap it to the front, unless a cancelled frame has left
+		// nothing to render. A failed render leaves the bitmaps as they were, as the renderer expects
+		// to keep alternating between them, but the surface is redrawn in full next time.
+		boolean rendered = (iters > 0) && renderer.render(backBitmap, paletteMapping);
+		if (rendered) {
+			renderer.getChangedBounds(renderedBounds);
 			
-			// Render into off screen bitmap
-			renderer.render(bitmap, paletteMapping);
+			synchronized (buffersLock) {
+				// Renders of different params can differ anywhere
+				if (iterParams.equals(frontParams))
+					changedBounds.union(renderedBounds);
+				else
+					redrawAll = true;
+				
+				Bitmap bitmap = frontBitmap;
+				frontBitmap = backBitmap;
+				backBitmap = bitmap;
+				frontParams = iterParams;
+			}
+			requestPresent();
+		}
+		else if (iters > 0) {
+			synchronized (buffersLock) {
+				redrawAll = true;
+			}
+		}
+		
+		// Fresh and pending frames don't iterate a predictable number of pixels so only refinements are
+		// measured. Cancelled frames stop short of the requested iterations.
+		if (!fresh && !pending && iters > reachedIters)
+			iterationController.recordFrame(iters - reachedIters, framePixels, iterateTime, System.nanoTime() - frameStart);
+		
+		// Converged once no pixels are left to iterate, or the renderer has reached its max iterations
+		// with none still pending
+		boolean stalled = iters == reachedIters && renderer.getPendingCount() == 0;
+		boolean converged = !fresh && (renderer.getActiveCount() == 0 || stalled) && params.get() == iterParams;
+		return !converged;
+	}
+	
+	/**
+	 * Draws the front bitmap to the surface. Waiting for the display only holds up the presenter thread.
+	 */
+	public void present() {
+		Rect dirty = null;
+		
+		// Only lock the part of the surface which has changed, unless the front bitmap was or will be
+		// drawn moved and scaled
+		synchronized (buffersLock) {
+			boolean exact = frontParams != null && frontParams.equals(params.get());
+			if (exact && !redrawAll) {
+				if (changedBounds.isEmpty())
+					return;
+				
+				presentBounds.set(changedBounds);
+				rendererToView(presentBounds);
+				dirty = presentBounds;
+			}
+			redrawAll = !exact;
+			changedBounds.setEmpty();
 		}
 		
-		// Lock canvas to draw to it
 		Canvas canvas = null;
 		try {
-			canvas = getHolder().lockCanvas();
-			synchronized (getHolder()) {
-				if (canvas != null)
+			canvas = (dirty != null) ? getHolder().lockCanvas(dirty) : getHolder().lockCanvas();
+			synchronized (buffersLock) {
+				if (canvas == null)
+					redrawAll = true;
+				else if (frontParams != null)
 					onDraw(canvas);
 			}
 		} finally {
@@ -164,42 +319,89 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 				getHolder().unlockCanvasAndPost(canvas);
 		}
 	}
+	
+	/**
+	 * Requests that the presenter thread draws the view again
+	 */
+	private void requestPresent() {
+		PresenterThread thread = presenterThread;
+		if (thread != null)
+			thread.requestPresent();
+	}
+	
+	/**
+	 * Wakes the renderer thread if it's waiting for something to change. This should be called after
+	 * changing the renderer's options, whereas setting the params does it already.
+	 */
+	public void requestUpdate() {
+		RendererThread thread = rendererThread;
+		if (thread != null)
+			thread.wake();
+	}
+	
+	/**
+	 * Gets whether the user is navigating, i.e. is in a gesture or has only just finished one
+	 * @return true if navigating
+	 */
+	private boolean isNavigating() {
+		if (navigationDetector == null)
+			return false;
+		
+		return navigationDetector.isInProgress() || (System.currentTimeMillis() - lastNavigationTime < NAVIGATION_SETTLE_TIME);
+	}
 
 	/**
 	 * @see android.view.View#onDraw(Canvas)
 	 */
 	@Override
 	protected void onDraw(Canvas canvas) {		
+		RendererParams params = this.params.get();
+		
 		// Are the params rendered in the bitmap the same as the renderer's params?
-		if (params.equals(bitmapParams)) {
-			canvas.drawBitmap(bitmap, 0, 0, null);
+		if (params.equals(frontParams)) {
+			canvas.drawBitmap(frontBitmap, 0, 0, null);
 		}
 		else {
-			// Calculate the complex space covered by the bitmap
-			Complex bitmap_c1 = pixelsToComplex(bitmapParams, new PointF(0, 0));
-			Complex bitmap_c2 = pixelsToComplex(bitmapParams, new PointF(bitmap.getWidth(), bitmap.getHeight()));
+			// Calculate the complex space covered by the bitmap, relative to the current offset. The
+			// offsets are subtracted exactly so that this still works when zoomed beyond double precision.
+			Complex shift = frontParams.getExactOffset().sub(params.getExactOffset()).toComplex();
+			Complex bitmap_c1 = pixelsToDelta(frontParams, new PointF(0, 0)).add(shift);
+			Complex bitmap_c2 = pixelsToDelta(frontParams, new PointF(frontBitmap.getWidth(), frontBitmap.getHeight())).add(shift);
 			
 			// Map those complex points back into pixel space according to the current renderer params
-			PointF bitmap_p1 = complexToPixels(params, bitmap_c1);
-			PointF bitmap_p2 = complexToPixels(params, bitmap_c2);
+			PointF bitmap_p1 = deltaToPixels(params, bitmap_c1);
+			PointF bitmap_p2 = deltaToPixels(params, bitmap_c2);
 			
 			// Draw pre-navigation bitmap where render would be
 			canvas.drawARGB(255, 0, 0, 0);
-			canvas.drawBitmap(bitmap, null, new RectF(bitmap_p1.x, bitmap_p1.y, bitmap_p2.x, bitmap_p2.y), null);
+			canvas.drawBitmap(frontBitmap, null, new RectF(bitmap_p1.x, bitmap_p1.y, bitmap_p2.x, bitmap_p2.y), null);
 		}
 	}
 	
 	/**
-	 * Stops the rendering thread and doesn't return until it does
+	 * Stops the rendering and presenter threads and doesn't return until they do
 	 */
 	public void stopRendering() {
-		if (rendererThread != null) {
+		// Don't wait for the current frame to finish iterating
+		if (renderer != null)
+			renderer.cancel();
+		
+		stopThread(rendererThread);
+		stopThread(presenterThread);
+	}
+	
+	/**
+	 * Stops a thread and doesn't return until it does
+	 * @param thread the thread, which may be null
+	 */
+	private static void stopThread(Thread thread) {
+		if (thread != null) {
 			boolean retry = true;
-			rendererThread.interrupt();
+			thread.interrupt();
 			
 			while (retry) {
 				try {
-					rendererThread.join();
+					thread.join();
 					retry = false;
 				} catch (InterruptedException e) {
 				}
@@ -212,9 +414,16 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 	 */
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
-		if (navigationEnabled)
+		if (navigationEnabled) {
 			// Let the gesture detector handle the event
-			return navigationDetector.onTouchEvent(event);
+			boolean handled = navigationDetector.onTouchEvent(event);
+			
+			// Iterating waits for gestures to end
+			if (!navigationDetector.isInProgress())
+				requestUpdate();
+			
+			return handled;
+		}
 		
 		return false;
 	}
@@ -224,6 +433,8 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 	 */
 	@Override
 	public void onMultiTouchGesture(PointF[] prevPoints, PointF[] currPoints) {
+		lastNavigationTime = System.currentTimeMillis();
+		
 		if (prevPoints.length == 1)
 			panGesture(prevPoints[0], currPoints[0]);
 		else if (prevPoints.length == 2)
@@ -239,10 +450,17 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 	 * @param endPoint the end point
 	 */
 	private void panGesture(PointF startPoint, PointF endPoint) {
-		Complex startC = pixelsToComplex(params, startPoint);
-		Complex endC = pixelsToComplex(params, endPoint);
-		Complex diff = endC.sub(startC);
-		params.setOffset(params.getOffset().sub(diff));
+		// Only move by whole pixels so that the renderer can keep the part of the render still on
+		// screen, and carry the fraction over to the next gesture
+		float dx = startPoint.x - endPoint.x + panRemainder.x;
+		float dy = startPoint.y - endPoint.y + panRemainder.y;
+		int pixelsX = Math.round(dx);
+		int pixelsY = Math.round(dy);
+		panRemainder.set(dx - pixelsX, dy - pixelsY);
+
+		RendererParams current = params.get();
+		double inv_zoom = 1 / current.getZoom();
+		setRendererParams(current.translate(new Complex(pixelsX * inv_zoom, -pixelsY * inv_zoom)));
 	}
 	
 	/**
@@ -259,23 +477,23 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 		float scaleFactor = endDist / startDist;
 		
 		// Map previous points into complex space using current params
-		Complex prevC1 = pixelsToComplex(params, startPoint1);
-		Complex prevC2 = pixelsToComplex(params, startPoint2);
+		RendererParams current = params.get();
+		Complex prevC1 = pixelsToDelta(current, startPoint1);
+		Complex prevC2 = pixelsToDelta(current, startPoint2);
 		
 		// Update params zoom factor
-		params.setZoom(params.getZoom() * scaleFactor);
+		current = current.withZoom(current.getZoom() * scaleFactor);
 		
 		// Map current points into complex space using updated params
-		Complex currC1 = pixelsToComplex(params, endPoint1);
-		Complex currC2 = pixelsToComplex(params, endPoint2);
+		Complex currC1 = pixelsToDelta(current, endPoint1);
+		Complex currC2 = pixelsToDelta(current, endPoint2);
 		
-		// Calculate mid-points and their diff
+		// Calculate mid-points
 		Complex prevMP = prevC1.add(prevC2).scale(0.5);
 		Complex currMP = currC1.add(currC2).scale(0.5);
-		Complex diff = currMP.sub(prevMP);
 		
 		// Update params offset
-		params.setOffset(params.getOffset().sub(diff));
+		setRendererParams(current.translate(prevMP.sub(currMP)));
 	}
 	
 	/**
@@ -283,15 +501,22 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 	 * @return the parameters
 	 */
 	public RendererParams getRendererParams() {
-		return params;
+		return params.get();
 	}
 	
 	/**
-	 * Sets the renderer parameters
-	 * @return the parameters
+	 * Sets the renderer parameters. Any iteration of the previous parameters is cancelled so that the
+	 * new ones are shown as soon as possible.
+	 * @param params the parameters
 	 */
 	public void setRendererParams(RendererParams params) {
-		this.params = params;
+		this.params.set(params);
+		
+		if (renderer != null)
+			renderer.cancel();
+		
+		requestUpdate();
+		requestPresent();
 	}
 	
 	/**
@@ -311,11 +536,29 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 	}
 	
 	/**
-	 * Gets the off-screen bitmap
+	 * Gets a copy of the last completed render, which can be kept as the renderer carries on
 	 * @return the bitmap
 	 */
 	public Bitmap getBitmap() {
-		return bitmap;
+		synchronized (buffersLock) {
+			return frontBitmap.copy(Config.ARGB_8888, false);
+		}
+	}
+	
+	/**
+	 * Gets the bitmap of the last completed render, which must only be used while drawing
+	 * @return the bitmap
+	 */
+	protected Bitmap getFrontBitmap() {
+		return frontBitmap;
+	}
+	
+	/**
+	 * Converts a rectangle of the render to the rectangle of the view which it's drawn in
+	 * @param rect the rectangle, which is converted in place
+	 */
+	protected void rendererToView(Rect rect) {
+		// Renders are drawn at their own size
 	}
 	
 	/**
@@ -337,7 +580,7 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 	}
 	
 	/**
-	 * Gets the number of iterations per frame
+	 * Gets the number of iterations per frame used until there are frame timings
 	 * @return the number of iterations
 	 */
 	public int getIterationsPerFrame() {
@@ -345,11 +588,23 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 	}
 
 	/**
-	 * Sets the number of iterations per frame
+	 * Sets the number of iterations per frame used until there are frame timings, after which the
+	 * number is chosen to fit the frame budget
 	 * @param itersPerFrame the number of iterations
 	 */
 	public void setIterationsPerFrame(int itersPerFrame) {
 		this.itersPerFrame = itersPerFrame;
+		this.iterationController = new IterationController(itersPerFrame);
+	}
+	
+	/**
+	 * Sets the frame time budgets
+	 * @param navigatingBudget the budget (ms) while the user is navigating
+	 * @param idleBudget the budget (ms) otherwise
+	 */
+	public void setFrameBudgets(int navigatingBudget, int idleBudget) {
+		this.navigatingBudget = navigatingBudget;
+		this.idleBudget = idleBudget;
 	}
 	
 	/**
@@ -366,37 +621,41 @@ public class RendererView extends SurfaceView implements SurfaceHolder.Callback,
 	 */
 	public void setPaletteMapping(Mapping mapping) {
 		this.paletteMapping = mapping;
+		
+		synchronized (buffersLock) {
+			redrawAll = true;
+		}
+		requestUpdate();
 	}
 
 	/**
-	 * Converts the pixel space point to coordinate in complex-space
+	 * Converts the pixel space point to a coordinate in complex space relative to the offset. This
+	 * keeps full precision at any zoom, unlike an absolute coordinate.
 	 * @param params the renderer params
 	 * @param p the point in pixel space
-	 * @return the coordinate in complex space
+	 * @return the coordinate in complex space relative to the offset
 	 */
-	protected Complex pixelsToComplex(RendererParams params, PointF p) {
-		Complex offset = params.getOffset();
+	protected Complex pixelsToDelta(RendererParams params, PointF p) {
 		double inv_zoom = 1 / params.getZoom();
 		int half_w = getWidth() / 2;
 		int half_h = getHeight() / 2;
-		double re = (p.x - half_w) * inv_zoom + offset.re;
-		double im = (half_h - p.y) * inv_zoom + offset.im;
+		double re = (p.x - half_w) * inv_zoom;
+		double im = (half_h - p.y) * inv_zoom;
 		return new Complex(re, im);
 	}
 	
 	/**
-	 * Converts the pixel space point to coordinate in complex space
+	 * Converts a coordinate in complex space relative to the offset to a point in pixel space
 	 * @param params the renderer params
-	 * @param c the coordinate in complex space
+	 * @param c the coordinate in complex space relative to the offset
 	 * @return the point in pixel space
 	 */
-	private PointF complexToPixels(RendererParams params, Complex c) {
-		Complex offset = params.getOffset();
+	private PointF deltaToPixels(RendererParams params, Complex c) {
 		double zoom = params.getZoom();
 		int half_w = getWidth() / 2;
 		int half_h = getHeight() / 2;
-		double x = (c.re - offset.re) * zoom + half_w;
-		double y = half_h - (c.im - offset.im) * zoom;
+		double x = c.re * zoom + half_w;
+		double y = half_h - c.im * zoom;
 		return new PointF((float)x, (float)y);
 	}
 }
@@ -44,7 +44,33 @@ public abstract class ScaledRenderView extends RendererView {
 	 */
 	@Override
 	protected void onDraw(Canvas canvas) {
-		Bitmap bitmap = getBitmap();
+		Bitmap bitmap = getFrontBitmap();
+		Rect srcRect = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
+		
+		canvas.drawBitmap(bitmap, srcRect, getDestinationRect(bitmap), null);
+	}
+	
+	/**
+	 * @see com.ijuru.refract.ui.RendererView#rendererToView(android.graphics.Rect)
+	 */
+	@Override
+	protected void rendererToView(Rect rect) {
+		Bitmap bitmap = getFrontBitmap();
+		Rect dstRect = getDestinationRect(bitmap);
+		double scaleX = dstRect.width() / (double)bitmap.getWidth();
+		double scaleY = dstRect.height() / (double)bitmap.getHeight();
+		
+		// Round outwards so that scaled pixels on the edges are included
+		rect.set(dstRect.left + (int)Math.floor(rect.left * scaleX), dstRect.top + (int)Math.floor(rect.top * scaleY),
+				dstRect.left + (int)Math.ceil(rect.right * scaleX), dstRect.top + (int)Math.ceil(rect.bottom * scaleY));
+	}
+	
+	/**
+	 * Calculates the rectangle of the view which the render is drawn in
+	 * @param bitmap the render
+	 * @return the rectangle
+	 */
+	private Rect getDestinationRect(Bitmap bitmap) {
 		double rendererAspectRatio = bitmap.getWidth() / (double)bitmap.getHeight();
 		double viewAspectRatio = getWidth() / (double)getHeight();
 			
@@ -60,13 +86,10 @@ public abstract class ScaledRenderView extends RendererView {
 			dstWidth = (int)(dstHeight * rendererAspectRatio);
 		}
 		
-		// Calculate source and destination rectangles that will center the render
+		// Calculate destination rectangle that will center the render
 		int centerX = getWidth() / 2;
 		int centerY = getHeight() / 2;	
-		Rect dstRect = new Rect(centerX - dstWidth / 2, centerY - dstHeight / 2, centerX + dstWidth / 2, centerY + dstHeight / 2);
-		Rect srcRect = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
-		
-		canvas.drawBitmap(bitmap, srcRect, dstRect, null);
+		return new Rect(centerX - dstWidth / 2, centerY - dstHeight / 2, centerX + dstWidth / 2, centerY + dstHeight / 2);
 	}
 
 	/**
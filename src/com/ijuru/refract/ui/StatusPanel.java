@@ -82,9 +82,10 @@ public class StatusPanel extends TableLayout {
 	 * Sets the performance info
 	 * @param iters the number of iterations
 	 * @param fps the frames per second
+	 * @param colored the percentage of pixels colored by the last render
 	 */
-	public void setPerformanceInfo(int iters, double fps) {
-		updateField(txtPerf, String.format("%d iters at %.1f fps", iters, fps));
+	public void setPerformanceInfo(int iters, double fps, double colored) {
+		updateField(txtPerf, String.format("%d iters at %.1f fps, %.0f%% colored", iters, fps, colored));
 	}
 	
 	/**
@@ -19,10 +19,12 @@
 
 package com.ijuru.refract.utils;
 
+import com.ijuru.refract.renderer.BigComplex;
 import com.ijuru.refract.renderer.Complex;
 import com.ijuru.refract.renderer.Function;
 import com.ijuru.refract.renderer.Mapping;
 import com.ijuru.refract.renderer.RendererParams;
+import com.ijuru.refract.renderer.Strategy;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -107,6 +109,31 @@ public class Preferences {
 		preferences.edit().putString(key, value.toString()).commit();
 	}
 	
+	/**
+	 * Gets a shared preference as an arbitrary precision complex value
+	 * @param context the context
+	 * @param key the preference key
+	 * @param defValue the default value
+	 * @return the preference value
+	 */
+	public static BigComplex getComplexPreference(Context context, String key, BigComplex defValue) {
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+		String str = preferences.getString(key, defValue.toString());
+		BigComplex complex = BigComplex.parseComplex(str);
+		return complex != null ? complex : defValue;
+	}
+	
+	/**
+	 * Sets a shared preference as an arbitrary precision complex value
+	 * @param context the context
+	 * @param key the preference key
+	 * @param value the value
+	 */
+	public static void setComplexPreference(Context context, String key, BigComplex value) {
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+		preferences.edit().putString(key, value.toString()).commit();
+	}
+	
 	/**
 	 * Gets a shared preference as a function value
 	 * @param context the context
@@ -116,7 +143,7 @@ public class Preferences {
 	 */
 	public static Function getFunctionPreference(Context context, String key, Function def) {
 		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
-		String str = preferences.getString(key, def.name().toLowerCase());
+		String str = preferences.getString(key, def.toString());
 		Function function = Function.parseString(str);
 		return function != null ? function : def;
 	}
@@ -146,6 +173,20 @@ public class Preferences {
 		return mapping != null ? mapping : def;
 	}
 	
+	/**
+	 * Gets a shared preference as a strategy value
+	 * @param context the context
+	 * @param key the preference key
+	 * @param def the default value
+	 * @return the preference value
+	 */
+	public static Strategy getStrategyPreference(Context context, String key, Strategy def) {
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+		String str = preferences.getString(key, def.name().toLowerCase());
+		Strategy strategy = Strategy.parseString(str);
+		return strategy != null ? strategy : def;
+	}
+	
 	/**
 	 * Gets a shared preference as renderer parameters
 	 * @param context the context
@@ -155,7 +196,7 @@ public class Preferences {
 	 */
 	public static RendererParams getParametersPreference(Context context, String key) {
 		Function function = getFunctionPreference(context, key + ".function", Function.MANDELBROT);
-		Complex offset = getComplexPreference(context, key + ".offset", Complex.ORIGIN);
+		BigComplex offset = getComplexPreference(context, key + ".offset", BigComplex.ORIGIN);
 		double zoom = getDoublePreference(context, key + ".zoom", 0.0);
 		return new RendererParams(function, offset, zoom);
 	}
@@ -168,7 +209,7 @@ public class Preferences {
 	 */
 	public static void setParametersPreference(Context context, String key, RendererParams params) {
 		setFunctionPreference(context, key + ".function", params.getFunction());
-		setComplexPreference(context, key + ".offset", params.getOffset());
+		setComplexPreference(context, key + ".offset", params.getExactOffset());
 		setDoublePreference(context, key + ".zoom", params.getZoom());
 	}
 }